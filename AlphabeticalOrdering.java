@@ -0,0 +1,12 @@
+import java.util.*;
+
+//eliminates the candidates by alphabetical order (algorithm 2)
+public class AlphabeticalOrdering implements EliminationOrdering{
+
+    @Override
+    public List<String> order(List<Factor> factors, Set<String> candidates, BayesianNetwork bn){
+        List<String> eliminationOrder = new ArrayList<>(candidates);
+        Collections.sort(eliminationOrder); //sort by alphabetical order
+        return eliminationOrder;
+    }
+}
@@ -1,19 +1,56 @@
-import java.util.ArrayList;
+import java.util.*;
 
 public class BayesianNetwork{
 
     public ArrayList<Variable> variables = new ArrayList<>(); //store network variable
+    private Map<String, Integer> idByName = new HashMap<>(); //name -> position in variables
+    public final FactorCache factorCache = new FactorCache(FactorCache.DEFAULT_BUDGET); //factors shared between queries
+    private JunctionTree junctionTree; //compiled on first use
+
     public void addVariable(Variable var){
+        idByName.put(var.name, variables.size());
         variables.add(var);
     }
     public Variable getVariableByName(String name){
+        Integer id = idByName.get(name);
+        return id == null ? null : variables.get(id);
+    }
+    public int getVariableId(String name){ //position of variable in network, -1 if missing
+        Integer id = idByName.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized JunctionTree getJunctionTree(){
+        if(junctionTree == null){
+            junctionTree = JunctionTree.compile(this);
+        }
+        return junctionTree;
+    }
+
+    //builds the lookup tables of every variable (ids, parent ids, outcome indices and cpt strides)
+    //must be called once all variables and their definitions were added
+    public void compile(){
+        for(int i = 0; i < variables.size(); i++){
+            variables.get(i).compile(i, this);
+        }
+
+        //children are the reverse of the parent ids
+        List<List<Integer>> children = new ArrayList<>();
+        for(int i = 0; i < variables.size(); i++){
+            children.add(new ArrayList<>());
+        }
         for(Variable var : variables){
-            if(var.name.equals(name)){
-                return var;
+            for(int parentId : var.parentIds){
+                children.get(parentId).add(var.id);
+            }
+        }
+        for(Variable var : variables){
+            List<Integer> ids = children.get(var.id);
+            var.childIds = new int[ids.size()];
+            for(int i = 0; i < ids.size(); i++){
+                var.childIds[i] = ids.get(i);
             }
         }
-        return null;
     }
 
 }
-
@@ -0,0 +1,320 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+//cutset conditioning (algorithm 7): exact answers with memory linear in the network for any treewidth
+//a loop cutset is picked so that, once the cutset is instantiated, the relevant part of the network is a polytree
+//as far as the evidence goes, then P(query, evidence) = sum over the values c of the cutset of P(query, evidence, cutset=c)
+//every instantiation is answered by elimination with small factors (no cache, nothing kept), the cutset is grown
+//until the largest factor of an instantiation is within the factor budget of VariableElimination
+//the instantiations are split in ranges that run in parallel and are added up in a fixed order
+//options: -Dcutset.threads=P (default # cores)
+public class CutsetConditioning{
+
+    public static final int ALGORITHM = 7;
+
+    private static final int THREADS = Integer.getInteger("cutset.threads", Runtime.getRuntime().availableProcessors());
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS);
+    private static final FactorCache NO_CACHE = new FactorCache(0); //instantiations are never repeated
+
+    public static class Result{
+        public double probability;
+        public int addCount;
+        public int mulCount;
+        public List<String> cutset; //conditioned variables
+        public long instantiations;
+        public double[] posterior; //P(query var = k | evidence) for every outcome k
+
+        public Result(double probability, int addCount, int mulCount){ //constructor
+            this.probability = probability;
+            this.addCount = addCount;
+            this.mulCount = mulCount;
+        }
+    }
+
+    //what one range of instantiations added up
+    private static class Part{
+        ScaledDouble[] values; //P(query=k, evidence) by outcome k, then P(evidence)
+        long adds;
+        long muls;
+    }
+
+    public static Result run(Query q, BayesianNetwork bn){
+        return runAll(q, bn)[bn.getVariableByName(q.queryVar).getOutcomeIndex(q.queryValue)];
+    }
+
+    //one result per outcome of the query variable, from one pass over the instantiations
+    //(null for the values ruled out by evidence on the query variable)
+    public static Result[] runAll(Query q, BayesianNetwork bn){
+        List<String> cutset = loopCutset(q, bn);
+        withinBudget(q, bn, cutset);
+
+        long instantiations = 1;
+        int[] cardinalities = new int[cutset.size()];
+        for (int i = 0; i < cardinalities.length; i++){
+            cardinalities[i] = bn.getVariableByName(cutset.get(i)).outcomes.size();
+            if (instantiations > Long.MAX_VALUE / cardinalities[i]){
+                throw new IllegalStateException("loop cutset " + cutset + " has too many instantiations");
+            }
+            instantiations *= cardinalities[i];
+        }
+
+        //ranges of instantiations, a few per thread so uneven ranges balance out
+        long total = instantiations;
+        int ranges = (int) Math.min(total, 4L * THREADS);
+        QueryMetrics metrics = QueryMetrics.current(); //measures the eliminations of every range
+        List<Callable<Part>> tasks = new ArrayList<>();
+        for (int r = 0; r < ranges; r++){
+            long from = total * r / ranges;
+            long to = total * (r + 1) / ranges;
+            tasks.add(() -> {
+                QueryMetrics previous = QueryMetrics.attach(metrics);
+                try {
+                    return instantiate(q, bn, cutset, cardinalities, from, to);
+                } finally {
+                    QueryMetrics.attach(previous);
+                }
+            });
+        }
+
+        List<Part> parts = new ArrayList<>();
+        try {
+            for (Future<Part> f : POOL.invokeAll(tasks)){
+                parts.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("cutset conditioning interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+
+        //reduction in range order, the sum doesn't depend on the scheduling
+        Variable queryVar = bn.getVariableByName(q.queryVar);
+        int k = queryVar.outcomes.size();
+        ScaledDouble[] values = new ScaledDouble[k + 1];
+        for (int i = 0; i <= k; i++){
+            values[i] = new ScaledDouble(0.0);
+        }
+        long adds = 0;
+        long muls = 0;
+        for (int r = 0; r < parts.size(); r++){
+            Part part = parts.get(r);
+            for (int i = 0; i <= k; i++){
+                values[i].add(part.values[i]);
+            }
+            adds += part.adds + (r > 0 ? 2 : 0); //numerator of the asked value and denominator
+            muls += part.muls;
+        }
+
+        ScaledDouble denominator = values[k];
+        if (denominator.isZero()){
+            throw new IllegalStateException("probability of the evidence is 0" + (ScaledDouble.ENABLED ? "" : " (or underflowed, try -Dve.numeric=scaled)"));
+        }
+        adds++; //normalization
+
+        double[] posterior = new double[k];
+        for (int i = 0; i < k; i++){
+            posterior[i] = values[i].divide(denominator);
+        }
+
+        Result[] results = new Result[k];
+        String observed = q.evidence.get(q.queryVar);
+        for (int i = 0; i < k; i++){
+            if (observed != null && !observed.equals(queryVar.outcomes.get(i))){
+                continue;
+            }
+            results[i] = new Result(posterior[i], (int) Math.min(Integer.MAX_VALUE, adds), (int) Math.min(Integer.MAX_VALUE, muls));
+            results[i].cutset = cutset;
+            results[i].instantiations = instantiations;
+            results[i].posterior = posterior;
+        }
+        return results;
+    }
+
+    //instantiations [from, to) of the cutset, the last cutset variable changes fastest
+    private static Part instantiate(Query q, BayesianNetwork bn, List<String> cutset, int[] cardinalities, long from, long to){
+        Part part = new Part();
+        part.values = new ScaledDouble[bn.getVariableByName(q.queryVar).outcomes.size() + 1];
+        for (int i = 0; i < part.values.length; i++){
+            part.values[i] = new ScaledDouble(0.0);
+        }
+        int[] addCounter = new int[1];
+        int[] mulCounter = new int[1];
+
+        for (long index = from; index < to; index++){
+            //heuristic order on a polytree keeps every factor as small as a family of the network
+            Query instance = instance(q, bn, cutset, cardinalities, index);
+            ScaledDouble[] joint = VariableElimination.joint(instance, bn, NO_CACHE, addCounter, mulCounter);
+
+            for (int i = 0; i < part.values.length; i++){
+                part.values[i].add(joint[i]);
+            }
+            if (index > from){
+                addCounter[0] += 2;
+            }
+            part.adds += addCounter[0];
+            part.muls += mulCounter[0];
+            addCounter[0] = 0;
+            mulCounter[0] = 0;
+        }
+        return part;
+    }
+
+    //the query of instantiation # index of the cutset, the last cutset variable changes fastest
+    private static Query instance(Query q, BayesianNetwork bn, List<String> cutset, int[] cardinalities, long index){
+        Map<String, String> evidence = new LinkedHashMap<>(q.evidence);
+        long rest = index;
+        for (int i = cutset.size() - 1; i >= 0; i--){
+            Variable var = bn.getVariableByName(cutset.get(i));
+            evidence.put(var.name, var.outcomes.get((int) (rest % cardinalities[i])));
+            rest /= cardinalities[i];
+        }
+        return new Query(q.queryVar, q.queryValue, evidence, 3);
+    }
+
+    //grows the cutset until an instantiation stays within the factor budget. all instantiations have the same
+    //scopes (a conditioned variable has one value in every factor), so the plan of the first one holds for all
+    private static void withinBudget(Query q, BayesianNetwork bn, List<String> cutset){
+        while (true){
+            int[] cardinalities = new int[cutset.size()];
+            for (int i = 0; i < cardinalities.length; i++){
+                cardinalities[i] = bn.getVariableByName(cutset.get(i)).outcomes.size();
+            }
+            Map<String, Integer> peakScope = new HashMap<>();
+            long peak = VariableElimination.plannedPeak(instance(q, bn, cutset, cardinalities, 0), bn, peakScope);
+            if (peak <= VariableElimination.MAX_FACTOR_SIZE){
+                return;
+            }
+
+            //the variable of the largest factor with the most values, ties by name
+            String best = null;
+            for (String name : new TreeSet<>(peakScope.keySet())){
+                if (name.equals(q.queryVar) || q.evidence.containsKey(name) || cutset.contains(name) || peakScope.get(name) < 2){
+                    continue;
+                }
+                if (best == null || peakScope.get(name) > peakScope.get(best)){
+                    best = name;
+                }
+            }
+            if (best == null){
+                throw new VariableElimination.FactorTooLargeException("query " + q.originalQuery + " needs a factor over " + peakScope.keySet() + " even with the cutset " + cutset + ", larger than the budget of " + VariableElimination.MAX_FACTOR_SIZE + " entries", peak);
+            }
+            cutset.add(best);
+        }
+    }
+
+    //greedy loop cutset (Suermondt and Cooper) of the ancestors of query and evidence, on the skeleton of the DAG:
+    //leaves (degree <= 1) are removed until none is left, then a remaining variable with at most one remaining
+    //parent is taken out. such a variable is never the converging (head to head) node of a loop through it, so
+    //fixing its value breaks all those loops: evidence is already fixed and goes for free, anything else joins the
+    //cutset, the one with the most neighbors first. observed converging nodes stay, they don't break loops.
+    //the query variable is only conditioned on when nothing else is left
+    static List<String> loopCutset(Query q, BayesianNetwork bn){
+        int n = bn.variables.size();
+        boolean[] present = new boolean[n];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(bn.getVariableId(q.queryVar));
+        for (String ev : q.evidence.keySet()){
+            stack.push(bn.getVariableId(ev));
+        }
+        boolean[] ancestor = new boolean[n];
+        while (!stack.isEmpty()){
+            int id = stack.pop();
+            if (!ancestor[id]){
+                ancestor[id] = true;
+                for (int parent : bn.variables.get(id).parentIds){
+                    stack.push(parent);
+                }
+            }
+        }
+        System.arraycopy(ancestor, 0, present, 0, n);
+
+        //skeleton of the remaining DAG, and the remaining parents of every variable
+        List<Set<Integer>> adjacent = new ArrayList<>();
+        List<Set<Integer>> parents = new ArrayList<>();
+        for (int id = 0; id < n; id++){
+            adjacent.add(new HashSet<>());
+            parents.add(new HashSet<>());
+        }
+        for (int id = 0; id < n; id++){
+            if (!present[id]){
+                continue;
+            }
+            for (int parent : bn.variables.get(id).parentIds){
+                if (present[parent]){
+                    adjacent.get(id).add(parent);
+                    adjacent.get(parent).add(id);
+                    parents.get(id).add(parent);
+                }
+            }
+        }
+
+        int queryId = bn.getVariableId(q.queryVar);
+        List<String> cutset = new ArrayList<>();
+        while (true){
+            //peel leaves, what stays is on a loop or between loops
+            Deque<Integer> leaves = new ArrayDeque<>();
+            for (int id = 0; id < n; id++){
+                if (present[id] && adjacent.get(id).size() <= 1){
+                    leaves.add(id);
+                }
+            }
+            while (!leaves.isEmpty()){
+                int id = leaves.poll();
+                if (!present[id]){
+                    continue;
+                }
+                remove(id, present, adjacent, parents, leaves);
+            }
+
+            //observed variables that break their loops first, they cost nothing
+            int observed = -1;
+            int best = -1;
+            int fallback = -1; //when only converging nodes (and the query variable) are left
+            for (int id = 0; id < n; id++){
+                if (!present[id]){
+                    continue;
+                }
+                boolean breaks = parents.get(id).size() <= 1;
+                if (q.evidence.containsKey(bn.variables.get(id).name)){
+                    if (breaks && observed < 0){
+                        observed = id;
+                    }
+                } else if (id != queryId){
+                    if (breaks && (best < 0 || adjacent.get(id).size() > adjacent.get(best).size())){
+                        best = id;
+                    }
+                    if (fallback < 0 || adjacent.get(id).size() > adjacent.get(fallback).size()){
+                        fallback = id;
+                    }
+                }
+            }
+            if (observed >= 0){
+                remove(observed, present, adjacent, parents, new ArrayDeque<>());
+                continue;
+            }
+            if (best < 0){
+                best = fallback;
+            }
+            if (best < 0){
+                return cutset; //only observed converging nodes and the query variable are left on loops
+            }
+            cutset.add(bn.variables.get(best).name);
+            remove(best, present, adjacent, parents, new ArrayDeque<>());
+        }
+    }
+
+    private static void remove(int id, boolean[] present, List<Set<Integer>> adjacent, List<Set<Integer>> parents, Deque<Integer> leaves){
+        present[id] = false;
+        for (int other : adjacent.get(id)){
+            adjacent.get(other).remove(id);
+            parents.get(other).remove(id);
+            if (adjacent.get(other).size() <= 1){
+                leaves.add(other);
+            }
+        }
+        adjacent.get(id).clear();
+        parents.get(id).clear();
+    }
+}
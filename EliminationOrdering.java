@@ -0,0 +1,23 @@
+import java.util.*;
+
+//strategy that decides in which order Variable Elimination sums out the hidden variables
+public interface EliminationOrdering{
+
+    //heuristic used by algorithm 3 (-Dve.ordering=min-size|min-degree|min-fill|weighted-min-fill)
+    String HEURISTIC = System.getProperty("ve.ordering", "min-size");
+
+    //full elimination order of the candidates, given the factors before any elimination
+    List<String> order(List<Factor> factors, Set<String> candidates, BayesianNetwork bn);
+
+    //ordering of the given algorithm number, null if the algorithm doesn't eliminate
+    static EliminationOrdering forAlgorithm(int algoNum){
+        switch (algoNum){
+            case 2:
+                return new AlphabeticalOrdering();
+            case 3:
+                return new GreedyOrdering(GreedyOrdering.Heuristic.fromName(HEURISTIC));
+            default:
+                return null;
+        }
+    }
+}
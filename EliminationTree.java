@@ -0,0 +1,190 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+//dependency tree of an elimination order: a step (one variable of the order) joins the factors that contain its
+//variable and sums it out, its inputs are CPT factors or the results of earlier steps, and the final join of what
+//is left is the root. steps on different branches touch different factors, so the branches run as parallel tasks
+//on the pool of VariableElimination and meet at the step that joins their results
+//
+//the tree is built from the scopes the way the sequential loop consumes its list of factors, so every step joins
+//the same factors in the same order: the factors and the counts are those of the sequential run
+//-Dve.parallel.subtree=N: # rows (of all the factors a branch builds) for a branch to get its own task
+//(default 16384, 0 = never), used only when the pool has more than one thread (-Dve.threads)
+public class EliminationTree{
+
+    private static final long SUBTREE_ROWS = Long.getLong("ve.parallel.subtree", 16384);
+
+    //one elimination of the order, or the final join (var == null)
+    private static class Step{
+        final String var;
+        final int[] inputs; //slots in the order of the sequential list: a CPT factor below # factors, then the results of the steps
+        long work; //# rows of the factors built by this step and the steps below it
+
+        Step(String var, int[] inputs){ //constructor
+            this.var = var;
+            this.inputs = inputs;
+        }
+    }
+
+    private final List<Step> steps; //step of slot # factors + i at i, root last
+    private final int factorCount;
+
+    private EliminationTree(List<Step> steps, int factorCount){ //constructor
+        this.steps = steps;
+        this.factorCount = factorCount;
+    }
+
+    //tree of the order over the factors, null when no step has two branches big enough to run apart
+    static EliminationTree plan(List<Factor> factors, List<String> order){
+        if(SUBTREE_ROWS <= 0 || VariableElimination.POOL.getParallelism() <= 1){
+            return null;
+        }
+
+        int m = factors.size();
+        List<Integer> slots = new ArrayList<>(); //the sequential list of factors, by slot
+        List<Map<String, Integer>> scopes = new ArrayList<>(); //scope of every slot
+        for(int i = 0; i < m; i++){
+            Factor f = factors.get(i);
+            Map<String, Integer> scope = new HashMap<>();
+            for(int j = 0; j < f.variables.size(); j++){
+                scope.put(f.variables.get(j), f.cardinalities[j]);
+            }
+            slots.add(i);
+            scopes.add(scope);
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for(int s = 0; s <= order.size(); s++){
+            String var = s < order.size() ? order.get(s) : null; //last: join of the remaining factors
+            List<Integer> inputs = new ArrayList<>();
+            Map<String, Integer> joined = new HashMap<>();
+            Iterator<Integer> it = slots.iterator();
+            while(it.hasNext()){
+                int slot = it.next();
+                if(var == null || scopes.get(slot).containsKey(var)){
+                    inputs.add(slot);
+                    joined.putAll(scopes.get(slot));
+                    it.remove();
+                }
+            }
+            if(inputs.isEmpty()){ //the variable is in no factor, nothing to do
+                continue;
+            }
+
+            Step step = new Step(var, inputs.stream().mapToInt(Integer::intValue).toArray());
+            long size = 1;
+            for(int cardinality : joined.values()){
+                size = size > Long.MAX_VALUE / cardinality ? Long.MAX_VALUE : size * cardinality;
+            }
+            step.work = size;
+            for(int slot : step.inputs){
+                if(slot >= m){
+                    long below = steps.get(slot - m).work;
+                    step.work = step.work > Long.MAX_VALUE - below ? Long.MAX_VALUE : step.work + below;
+                }
+            }
+            joined.remove(var);
+            slots.add(m + steps.size());
+            scopes.add(joined);
+            steps.add(step);
+        }
+
+        for(Step step : steps){
+            int branches = 0;
+            for(int slot : step.inputs){
+                if(slot >= m && steps.get(slot - m).work >= SUBTREE_ROWS){
+                    branches++;
+                }
+            }
+            if(branches >= 2){
+                return new EliminationTree(steps, m);
+            }
+        }
+        return null;
+    }
+
+    //runs the tree on the factors it was planned from, returns the final factor
+    Factor run(List<Factor> factors, FactorCache cache, int[] addCounter, int[] mulCounter){
+        Task root = new Task(steps.size() - 1, factors, cache, QueryMetrics.current());
+        Factor result = ForkJoinTask.getPool() == VariableElimination.POOL ? root.invoke() : VariableElimination.POOL.invoke(root);
+        addCounter[0] += root.adds;
+        mulCounter[0] += root.muls;
+        return result;
+    }
+
+    //one step, after the steps its inputs come from. adds and muls count the whole branch
+    private class Task extends RecursiveTask<Factor>{
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        final List<Factor> factors;
+        final FactorCache cache;
+        final QueryMetrics metrics;
+        int adds;
+        int muls;
+
+        Task(int index, List<Factor> factors, FactorCache cache, QueryMetrics metrics){ //constructor
+            this.index = index;
+            this.factors = factors;
+            this.cache = cache;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected Factor compute(){
+            QueryMetrics previous = QueryMetrics.attach(metrics); //the query's metrics, on whatever thread runs the step
+            try {
+                Step step = steps.get(index);
+                Factor[] inputs = new Factor[step.inputs.length];
+                Task[] children = new Task[step.inputs.length];
+                boolean[] forked = new boolean[step.inputs.length];
+
+                //big branches become tasks, the small ones run here
+                for(int i = 0; i < step.inputs.length; i++){
+                    int slot = step.inputs[i];
+                    if(slot < factorCount){
+                        inputs[i] = factors.get(slot);
+                    }else{
+                        children[i] = new Task(slot - factorCount, factors, cache, metrics);
+                        if(steps.get(slot - factorCount).work >= SUBTREE_ROWS){
+                            children[i].fork();
+                            forked[i] = true;
+                        }
+                    }
+                }
+                for(int i = 0; i < children.length; i++){
+                    if(children[i] != null && !forked[i]){
+                        inputs[i] = children[i].invoke();
+                    }
+                }
+                for(int i = children.length - 1; i >= 0; i--){
+                    if(forked[i]){
+                        inputs[i] = children[i].join();
+                    }
+                }
+                for(Task child : children){
+                    if(child != null){
+                        adds += child.adds;
+                        muls += child.muls;
+                    }
+                }
+
+                int[] addCounter = new int[1];
+                int[] mulCounter = new int[1];
+                Factor result;
+                if(step.var != null){
+                    result = VariableElimination.eliminateStep(new ArrayList<>(Arrays.asList(inputs)), step.var, addCounter, mulCounter, cache);
+                }else{
+                    long finalJoin = QueryMetrics.start();
+                    result = VariableElimination.joinMultipleFactors(new ArrayList<>(Arrays.asList(inputs)), mulCounter);
+                    QueryMetrics.stop("join", finalJoin);
+                }
+                adds += addCounter[0];
+                muls += mulCounter[0];
+                return result;
+            } finally {
+                QueryMetrics.attach(previous);
+            }
+        }
+    }
+}
@@ -1,76 +1,177 @@
 import java.io.IOException;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.io.FileWriter;
+import java.util.concurrent.*;
 
 
 public class Ex1{
+
+    //number of queries evaluated concurrently, 1 keeps the original sequential run (-Dex1.threads=N)
+    private static final int THREADS = Integer.getInteger("ex1.threads", 1);
+    //executor used for parallel runs: "forkjoin" (default) or "virtual" (-Dex1.executor=...)
+    private static final String EXECUTOR = System.getProperty("ex1.executor", "forkjoin");
+    //queries are read, grouped and answered a window of lines at a time, so memory doesn't grow with the input (-Dex1.window=N)
+    private static final int WINDOW = Math.max(1, Integer.getInteger("ex1.window", 1024));
+    //windows read ahead of the writer in parallel runs
+    private static final int WINDOWS_AHEAD = 4;
+
     public static void main(String[] args)
     {
-        //read from input.txt
-        List<String> inputLines = InputReader.readLines("input.txt");
-
-        //stop the program if file is empty
-        if(inputLines.isEmpty()){
+        //read from input.txt, one window of queries at a time
+        BufferedReader reader = InputReader.open("input.txt");
+        if(reader == null){
             return;
         }
 
-        String xmlFileName = inputLines.get(0); //name of XML file
-        BayesianNetwork bn = XMLParser.readXML(xmlFileName);
+        try (BufferedReader input = reader){
+            String xmlFileName = InputReader.nextLine(input); //name of network file
 
-//        System.out.println("----- CPTs for all variables -----");
-//        for(Variable var : bn.variables){
-//            var.printCPT();
-//        }
+            //stop the program if file is empty
+            if(xmlFileName == null){
+                return;
+            }
 
-        List<String> queries = inputLines.subList(1, inputLines.size()); //store al query in list
+            BayesianNetwork bn = NetworkFile.load(xmlFileName); //XML, or a compiled .bnet file
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("output.txt"))){
-            for (String queryLine : queries){ //loop over all queries
-                try {
-                    Query q = new Query(queryLine);
-                    QueryValidator.validate(q, bn);
-
-                    if(!q.conditional){ //full joint probability
-
-                        JointProbability.Result res = JointProbability.run(q, bn);
-                        res.print();
-
-                        String formatted = String.format("%.5f,0,%d", res.probability, res.mulCount); //in full joint probability there is no additions operations
-                        writer.write(formatted);
-                        writer.newLine();
-
-                    } else {
-                        switch (q.algoNum) {
-                            case 1: { //joint probability
-                                SimpleInference.Result res = SimpleInference.run(q, bn);
-                                String formatted = String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
-                                writer.write(formatted);
-                                writer.newLine();
-                                break;
-                            }
-                            case 2:
-                            case 3: { //variable elimination
-                                VariableElimination.Result res = VariableElimination.run(q, bn);
-                                String formatted = String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
-                                writer.write(formatted);
-                                writer.newLine();
-                                break;
-                            }
-                            default: {
-                                writer.write("0.00000,0,0");
-                                writer.newLine();
-                            }
+//            System.out.println("----- CPTs for all variables -----");
+//            for(Variable var : bn.variables){
+//                var.printCPT();
+//            }
+
+            //one measurement per query, written in input order next to its output line (-Dex1.metrics=true)
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter("output.txt"));
+                 BufferedWriter metricsWriter = QueryMetrics.ENABLED ? new BufferedWriter(new FileWriter("output.metrics.jsonl")) : null){
+                if (THREADS <= 1){
+                    for (Window window; (window = Window.read(input)) != null; ){ //loop over all queries
+                        for (int[] group : window.groups){
+                            window.answer(group, QueryRunner.answer(window.queries, group, bn, window.metrics));
                         }
+                        window.write(writer, metricsWriter);
                     }
-                } catch (Exception e) {
-                    writer.write("0.00000,0,0");
-                    writer.newLine();
-                    System.out.println("skipping invalid query: " + queryLine + " – " + e.getMessage());
+                } else {
+                    runParallel(input, bn, writer, metricsWriter);
                 }
+            } catch (IOException e) {
+                System.out.println("failed to write to output.txt: " + e.getMessage());
             }
         } catch (IOException e) {
-            System.out.println("failed to write to output.txt: " + e.getMessage());
+            System.out.println("error reading input file: " + e.getMessage());
+        }
+    }
+
+    //consecutive query lines, grouped (QueryRunner.group) and answered together
+    private static class Window{
+        final List<String> queries;
+        final List<QueryMetrics> metrics = new ArrayList<>();
+        final List<int[]> groups;
+        final List<Future<String[]>> answers = new ArrayList<>(); //by group, parallel runs only
+        final String[] lines;
+
+        Window(List<String> queries){ //constructor
+            this.queries = queries;
+            for (String queryLine : queries){
+                metrics.add(QueryMetrics.ENABLED ? new QueryMetrics(queryLine) : null);
+            }
+            this.groups = QueryRunner.group(queries);
+            this.lines = new String[queries.size()];
+        }
+
+        //next window of the input, null at the end of the file
+        static Window read(BufferedReader input) throws IOException{
+            List<String> queries = InputReader.nextLines(input, WINDOW);
+            return queries.isEmpty() ? null : new Window(queries);
+        }
+
+        void answer(int[] group, String[] groupLines){
+            for (int i = 0; i < group.length; i++){
+                lines[group[i]] = groupLines[i];
+            }
+        }
+
+        //waits for the answers submitted by runParallel, the lines of a group that failed are errors
+        void await(){
+            for (int g = 0; g < groups.size(); g++){
+                String[] groupLines;
+                try {
+                    groupLines = answers.get(g).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    groupLines = null;
+                } catch (ExecutionException e) {
+                    groupLines = null;
+                }
+                for (int i = 0; i < groups.get(g).length; i++){
+                    lines[groups.get(g)[i]] = groupLines != null ? groupLines[i] : QueryRunner.ERROR_LINE;
+                }
+            }
+        }
+
+        void write(BufferedWriter writer, BufferedWriter metricsWriter) throws IOException{
+            for (int i = 0; i < lines.length; i++){
+                writer.write(lines[i]);
+                writer.newLine();
+                if (metricsWriter != null){
+                    metricsWriter.write(metrics.get(i).toJson());
+                    metricsWriter.newLine();
+                }
+            }
+        }
+    }
+
+    //evaluate all queries concurrently, lines are still written in input order
+    //a reader thread reads and groups the windows and submits their groups, this thread writes them in order;
+    //at most WINDOWS_AHEAD windows wait for the writer, the reader blocks until one is written
+    private static void runParallel(BufferedReader input, BayesianNetwork bn, BufferedWriter writer, BufferedWriter metricsWriter) throws IOException{
+        ExecutorService executor = createExecutor();
+        BlockingQueue<Window> pending = new ArrayBlockingQueue<>(WINDOWS_AHEAD);
+        Window end = new Window(new ArrayList<>()); //marks the end of the input
+
+        Thread producer = new Thread(() -> {
+            try {
+                for (Window window; (window = Window.read(input)) != null; ){
+                    for (int[] group : window.groups){
+                        Window w = window;
+                        window.answers.add(executor.submit(() -> QueryRunner.answer(w.queries, group, bn, w.metrics)));
+                    }
+                    pending.put(window);
+                }
+            } catch (IOException e) {
+                System.out.println("error reading input file: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return; //the writer stopped
+            }
+            try {
+                pending.put(end);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "ex1-reader");
+        producer.start();
+
+        try {
+            for (Window window = pending.take(); window != end; window = pending.take()){ //windows in input order
+                window.await();
+                window.write(writer, metricsWriter);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            producer.interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private static ExecutorService createExecutor(){
+        if (EXECUTOR.equals("virtual")){
+            try { //virtual threads exist only from java 21, fall back to fork-join on older runtimes
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("virtual threads are not available, using fork-join pool");
+            }
         }
+        return new ForkJoinPool(THREADS);
     }
 }
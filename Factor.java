@@ -3,11 +3,50 @@ import java.util.*;
 public class Factor{
 
     public List<String> variables; //variables involved in current factor
-    public Map<Map<String, String>, Double> table; // Assignment to corresponding probability
+    public int[] varIds; //network id of each variable (position in bn.variables)
+    public int[] cardinalities; //# values of each variable in this factor (1 for evidence variable)
+    public int[] offsets; //outcome index of the first value of each variable (evidence value, otherwise 0)
+    public int[] strides; //mixed radix strides, last variable changes fastest (same layout as Variable.cpt)
+    public double[] table; //probability for each row, 8 bytes per row
+    public int scale; //binary exponent of the whole table, the value of a row is table[row] * 2^scale (0 in plain numeric mode)
+    public String key; //identity of the factor content for FactorCache, null if it is not cached
+
+    public Factor(List<String> variables, BayesianNetwork bn, Map<String, String> evidence){ //constructor
+        this.variables = new ArrayList<>(variables);
+
+        int n = variables.size();
+        this.varIds = new int[n];
+        this.cardinalities = new int[n];
+        this.offsets = new int[n];
+
+        for (int i = 0; i < n; i++){
+            String name = variables.get(i);
+            int id = bn.getVariableId(name);
+            Variable var = bn.variables.get(id);
+
+            varIds[i] = id;
+            String value = evidence.get(name);
+            if (value != null){ //evidence variable, only one value is possible
+                cardinalities[i] = 1;
+                offsets[i] = var.getOutcomeIndex(value);
+            } else {
+                cardinalities[i] = var.outcomes.size();
+                offsets[i] = 0;
+            }
+        }
+
+        this.strides = computeStrides(cardinalities);
+        this.table = new double[n == 0 ? 1 : strides[0] * cardinalities[0]];
+    }
 
-    public Factor(List<String> variables){ //constructor
+    //builds a factor over the given dimensions, copied from other factors
+    public Factor(List<String> variables, int[] varIds, int[] cardinalities, int[] offsets){
         this.variables = new ArrayList<>(variables);
-        this.table = new LinkedHashMap<>();
+        this.varIds = varIds;
+        this.cardinalities = cardinalities;
+        this.offsets = offsets;
+        this.strides = computeStrides(cardinalities);
+        this.table = new double[variables.isEmpty() ? 1 : strides[0] * cardinalities[0]];
     }
 
     //create factor from variable, considering evidence
@@ -17,94 +56,77 @@ public class Factor{
         List<String> factorVars = new ArrayList<>(var.parents);//add var parents
         factorVars.add(var.name);// add current var
 
-        Factor factor = new Factor(factorVars);
+        Factor factor = new Factor(factorVars, bn, evidence);
 
-        List<Map<String, String>> allAssignments = generateAllAssignments(factorVars, var, evidence, bn);//considering all possible assignment
+        //strides of the full CPT, the factor has the same variable order (parents..., var)
+        int n = factorVars.size();
+        int[] cptStrides = Arrays.copyOf(var.cptStrides, n);
+        cptStrides[n - 1] = 1;
 
-        for (Map<String, String> assignment : allAssignments){ //loop over possible assignment
-            double prob = getProbability(var, assignment, bn);
-
-            //System.out.println("assignment: " + assignment + ", probability: " + prob);
+        //slice of the CPT: observed variables are fixed at their offset, the others run over all outcomes
+        int cptIndex = 0;
+        for (int i = 0; i < n; i++){
+            cptIndex += factor.offsets[i] * cptStrides[i];
+        }
 
-            if (VariableElimination.isConsistent(assignment, evidence)){ //add only if consistent with evidence
-                factor.table.put(assignment, prob);
+        //odometer over the rows, only rows consistent with the evidence are visited
+        int[] counter = new int[n];
+        for (int row = 0; row < factor.table.length; row++){
+            factor.table[row] = var.cpt.get(cptIndex); //find probability according to index
+
+            for (int i = n - 1; i >= 0; i--){
+                counter[i]++;
+                cptIndex += cptStrides[i];
+                if (counter[i] < factor.cardinalities[i]){
+                    break;
+                }
+                counter[i] = 0;
+                cptIndex -= factor.cardinalities[i] * cptStrides[i];
             }
         }
 
         return factor;
     }
 
-    //generate all assignment consistent with the evidence
-    private static List<Map<String, String>> generateAllAssignments(List<String> vars, Variable var, Map<String, String> evidence, BayesianNetwork bn){
-        List<Map<String, String>> result = new ArrayList<>();
-        generateAllAssignmentsHelper(vars, 0, new LinkedHashMap<>(), var, evidence, bn, result); //call recursive function
-        return result;
+    //position of a variable in this factor, -1 if it is not involved
+    public int indexOf(String varName){
+        return variables.indexOf(varName);
     }
 
-    //recursive helper to generate assignments
-    private static void generateAllAssignmentsHelper(List<String> vars, int index, Map<String, String> current, Variable var, Map<String, String> evidence, BayesianNetwork bn, List<Map<String, String>> result){
+    //outcome index (in the network variable) of the given variable at the given row
+    public int outcomeAt(int row, int pos){
+        return offsets[pos] + (row / strides[pos]) % cardinalities[pos];
+    }
 
-        if (index == vars.size()){ //assignment completed
-            result.add(new LinkedHashMap<>(current));
+    //moves the magnitude of the table into scale so that the largest value is in [1, 2), used by the scaled numeric mode
+    public void rescale(){
+        double max = 0.0;
+        for (double value : table){
+            max = Math.max(max, value);
+        }
+        if (max == 0.0 || Double.isInfinite(max)){
             return;
         }
-
-        String varName = vars.get(index); //current var
-
-        if (evidence.containsKey(varName)){ //evidence already exist, no need to check possible options
-            current.put(varName, evidence.get(varName)); //fix given value
-            generateAllAssignmentsHelper(vars, index + 1, current, var, evidence, bn, result); //recursive call to next var
-            current.remove(varName);
-        } else {
-            //evidence doesnnt exist, iterate over all possible outcomes
-            Variable networkVar = bn.getVariableByName(varName);
-            for (String outcome : networkVar .outcomes){ //loop over all possible outcome
-                current.put(varName, outcome); //fix possible outcome
-                generateAllAssignmentsHelper(vars, index + 1, current, var, evidence, bn, result); //recursive call to next var
-                current.remove(varName);
+        int e = Math.getExponent(max);
+        if (e < Double.MIN_EXPONENT){ //subnormal maximum
+            e = Math.getExponent(max * 0x1p54) - 54;
+        }
+        if (e != 0){
+            for (int row = 0; row < table.length; row++){
+                table[row] = Math.scalb(table[row], -e);
             }
+            scale += e;
         }
     }
 
-    //get probability from CPT for given assignment
-    private static double getProbability(Variable var, Map<String, String> assignment, BayesianNetwork bn){
-
-        //follow position in probability array
-        int index = 0;
+    //mixed radix strides, last variable changes fastest
+    private static int[] computeStrides(int[] cardinalities){
+        int[] strides = new int[cardinalities.length];
         int base = 1;
-
-        //loop from last parent to first
-        for (int i = var.parents.size() - 1; i >= 0; i--){
-            String parentName = var.parents.get(i); //parent's name
-            Variable parentVar = bn.getVariableByName(parentName); //parent as a variable
-            String value = assignment.get(parentName); //parent's assignment
-            int pos = parentVar.outcomes.indexOf(value); //values position
-
-            //update according to possible values
-            index += pos * base;
-            base *= parentVar.outcomes.size();
-        }
-
-        //add the index for the variable itself
-        String varValue = assignment.get(var.name);
-
-        //updating index according to possible values
-        int varValueIndex = var.outcomes.indexOf(varValue);
-        index = index * var.outcomes.size() + varValueIndex;
-
-        double prob = var.cpt[index]; //find probability according to index
-        //System.out.println("lookup CPT for assignment: " + assignment + ", CPT index: " + index + ", probability: " + prob);
-
-        return prob;
-    }
-
-    //converts full assignment to assignment for factor variables only
-    public double getProbabilityForAssignment(Map<String, String> fullAssignment){
-        Map<String, String> projectedAssignment = new LinkedHashMap<>(); //store only relevant values
-
-        for (String var : this.variables){
-            projectedAssignment.put(var, fullAssignment.get(var));
+        for (int i = cardinalities.length - 1; i >= 0; i--){
+            strides[i] = base;
+            base *= cardinalities[i];
         }
-        return this.table.getOrDefault(projectedAssignment, 0.0);
+        return strides;
     }
 }
@@ -0,0 +1,172 @@
+import java.util.*;
+
+//bounded LRU cache of factors shared by all queries on one network
+//CPT factors are keyed by (variable, evidence on its scope), intermediate factors by (ordered input factors, eliminated variable)
+//every key is interned as a short id, so the key of a deep elimination doesn't contain the keys of all the factors below it
+public class FactorCache{
+
+    //default memory budget in bytes (-Dve.cache.bytes=N, 0 disables the cache)
+    public static final long DEFAULT_BUDGET = Long.getLong("ve.cache.bytes", 64L * 1024 * 1024);
+
+    //cached factor and the operations it cost to build, replayed on every hit so the counts don't change
+    public static class Entry{
+        public final Factor factor;
+        public final int addCount;
+        public final int mulCount;
+        public final int factors; //# factors built to compute it (joins and the sum out), for the query metrics of a hit
+        public final long maxFactorSize; //# entries of the largest of them
+        final long bytes;
+
+        Entry(Factor factor, int addCount, int mulCount){
+            this(factor, addCount, mulCount, 0, 0);
+        }
+
+        Entry(Factor factor, int addCount, int mulCount, int factors, long maxFactorSize){
+            this.factor = factor;
+            this.addCount = addCount;
+            this.mulCount = mulCount;
+            this.factors = factors;
+            this.maxFactorSize = maxFactorSize;
+            this.bytes = estimateBytes(factor);
+        }
+    }
+
+    private final long budget;
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long reusedAdds = 0; //operations replayed from cached entries instead of being computed
+    private long reusedMuls = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); //access order for LRU
+    private final Map<String, Long> ids = new HashMap<>(); //full key -> id
+    private long nextId = 0;
+    private static final int MAX_IDS = 1 << 20;
+
+    public FactorCache(long budget){ //constructor
+        this.budget = budget;
+    }
+
+    //factor of var's CPT restricted by the evidence, built once per (variable, evidence on its scope)
+    public Factor cptFactor(Variable var, Map<String, String> evidence, BayesianNetwork bn){
+        if (!isEnabled()){
+            return Factor.createFromVariable(var, evidence, bn);
+        }
+
+        StringBuilder key = new StringBuilder("cpt:").append(var.name).append('|');
+        for (String parent : var.parents){
+            key.append(evidence.getOrDefault(parent, "*")).append(',');
+        }
+        key.append(evidence.getOrDefault(var.name, "*"));
+
+        String k = intern(key.toString());
+        Entry cached = get(k);
+        if (cached != null){
+            return cached.factor;
+        }
+
+        Factor factor = Factor.createFromVariable(var, evidence, bn);
+        factor.key = k;
+        put(k, new Entry(factor, 0, 0));
+        return factor;
+    }
+
+    //key of the factor produced by joining the factors (in this order) and summing out var
+    public String eliminationKey(List<Factor> factors, String var){
+        StringBuilder key = new StringBuilder("sum:").append(var).append('[');
+        for (Factor f : factors){
+            key.append('(').append(f.key).append(')');
+        }
+        return intern(key.append(']').toString());
+    }
+
+    //short key for a full key, the same full key always gets the same one while it is remembered. ids are never
+    //reused, so forgetting them (when there are too many) only costs misses, never a wrong factor
+    private synchronized String intern(String key){
+        Long id = ids.get(key);
+        if (id == null){
+            if (ids.size() >= MAX_IDS){
+                ids.clear();
+            }
+            id = nextId++;
+            ids.put(key, id);
+        }
+        return "#" + id;
+    }
+
+    public boolean isEnabled(){
+        return budget > 0;
+    }
+
+    public synchronized Entry get(String key){
+        if (budget <= 0){
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null){
+            misses++;
+        } else {
+            hits++;
+            reusedAdds += entry.addCount;
+            reusedMuls += entry.mulCount;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, Entry entry){
+        if (budget <= 0 || entry.bytes > budget){ //too big to ever fit
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null){
+            usedBytes -= old.bytes;
+        }
+        usedBytes += entry.bytes;
+
+        //evict least recently used entries until we are back under the budget
+        Iterator<Entry> it = entries.values().iterator();
+        while (usedBytes > budget && it.hasNext()){
+            usedBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+        ids.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    public synchronized long getReusedAdds(){
+        return reusedAdds;
+    }
+
+    public synchronized long getReusedMuls(){
+        return reusedMuls;
+    }
+
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "factor cache: " + entries.size() + " entries, " + usedBytes + "/" + budget + " bytes, " + hits + " hits, " + misses + " misses";
+    }
+
+    //rough heap size of a factor: the table, the dimension arrays and the key
+    private static long estimateBytes(Factor f){
+        long bytes = 64 + 8L * f.table.length + 16L * f.varIds.length;
+        if (f.key != null){
+            bytes += 2L * f.key.length();
+        }
+        return bytes;
+    }
+}
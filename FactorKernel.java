@@ -0,0 +1,62 @@
+//inner loops of the factor operations of VariableElimination over contiguous runs of rows
+//every implementation does the same double operations in the same order per entry, so the tables are the same
+//
+//-Dve.kernel=auto (default): the SIMD kernel of vector/VectorFactorKernel.java when it is compiled in and the JVM
+//runs with --add-modules jdk.incubator.vector (java 16+), the scalar loops otherwise. scalar / vector force one
+public interface FactorKernel{
+
+    //out[io + j] = a[ia + j] * b[ib + j]
+    void multiply(double[] a, int ia, double[] b, int ib, double[] out, int io, int length);
+
+    //out[io + j] = a[ia + j] * s
+    void scale(double[] a, int ia, double s, double[] out, int io, int length);
+
+    //out[io + j] = 0 + src[is + j] + src[is + stride + j] + ... + src[is + (count - 1) * stride + j], added left to right
+    void sumStrided(double[] src, int is, int stride, int count, double[] out, int io, int length);
+
+    FactorKernel SCALAR = new Scalar();
+    FactorKernel SELECTED = Selection.select(System.getProperty("ve.kernel", "auto").trim().toLowerCase());
+
+    class Scalar implements FactorKernel{
+        @Override
+        public void multiply(double[] a, int ia, double[] b, int ib, double[] out, int io, int length){
+            for (int j = 0; j < length; j++){
+                out[io + j] = a[ia + j] * b[ib + j];
+            }
+        }
+
+        @Override
+        public void scale(double[] a, int ia, double s, double[] out, int io, int length){
+            for (int j = 0; j < length; j++){
+                out[io + j] = a[ia + j] * s;
+            }
+        }
+
+        @Override
+        public void sumStrided(double[] src, int is, int stride, int count, double[] out, int io, int length){
+            for (int j = 0; j < length; j++){
+                double sum = 0.0;
+                for (int k = 0; k < count; k++){
+                    sum += src[is + k * stride + j];
+                }
+                out[io + j] = sum;
+            }
+        }
+    }
+
+    class Selection{
+        static FactorKernel select(String name){
+            if (name.equals("scalar")){
+                return SCALAR;
+            }
+            try { //the vector kernel needs the incubator module, loaded only if it is there
+                return (FactorKernel) Class.forName("VectorFactorKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (name.equals("vector")){
+                    System.out.println("vector kernel is not available (compile vector/VectorFactorKernel.java, run with --add-modules jdk.incubator.vector), using scalar loops");
+                }
+                return SCALAR;
+            }
+        }
+    }
+}
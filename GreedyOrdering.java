@@ -0,0 +1,172 @@
+import java.util.*;
+
+//greedy elimination order kept on the interaction graph of the factors (algorithm 3)
+//eliminating a variable connects its neighbors, only the variables around it get a new cost
+public class GreedyOrdering implements EliminationOrdering{
+
+    public enum Heuristic{
+        MIN_SIZE, //size of the factor created by the elimination (original algorithm 3)
+        MIN_DEGREE, //# neighbors
+        MIN_FILL, //# edges added between the neighbors
+        WEIGHTED_MIN_FILL; //sum of the weights (product of cardinalities) of the added edges
+
+        public static Heuristic fromName(String name){ //"min-fill" -> MIN_FILL
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final Heuristic heuristic;
+
+    public GreedyOrdering(Heuristic heuristic){ //constructor
+        this.heuristic = heuristic;
+    }
+
+    @Override
+    public List<String> order(List<Factor> factors, Set<String> candidates, BayesianNetwork bn){
+
+        //interaction graph: one node per variable, an edge when two variables share a factor
+        Map<String, Integer> nodeOf = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        List<Set<Integer>> adjacent = new ArrayList<>();
+        List<Long> weights = new ArrayList<>(); //cardinality inside the factors (1 for evidence)
+
+        for (Factor f : factors){
+            int[] nodes = new int[f.variables.size()];
+            for (int i = 0; i < nodes.length; i++){
+                nodes[i] = addNode(f.variables.get(i), f.cardinalities[i], nodeOf, names, adjacent, weights);
+            }
+            for (int a : nodes){
+                for (int b : nodes){
+                    if (a != b){
+                        adjacent.get(a).add(b);
+                    }
+                }
+            }
+        }
+        for (String var : candidates){ //a candidate outside every factor costs nothing
+            addNode(var, bn.getVariableByName(var).outcomes.size(), nodeOf, names, adjacent, weights);
+        }
+
+        int n = names.size();
+        long[] fullCardinality = new long[n]; //min-size counts evidence with all its outcomes, like the original heuristic
+        long[] weight = new long[n];
+        for (int i = 0; i < n; i++){
+            fullCardinality[i] = bn.getVariableByName(names.get(i)).outcomes.size();
+            weight[i] = weights.get(i);
+        }
+
+        //ties go to the candidate that comes first in the set's iteration order
+        int[] rank = new int[n];
+        boolean[] candidate = new boolean[n];
+        int r = 0;
+        for (String var : candidates){
+            int node = nodeOf.get(var);
+            rank[node] = r++;
+            candidate[node] = true;
+        }
+
+        //queue of {cost, rank, node}, entries with an outdated cost are skipped
+        PriorityQueue<long[]> queue = new PriorityQueue<>((x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+        long[] cost = new long[n];
+        for (int v = 0; v < n; v++){
+            if (candidate[v]){
+                cost[v] = cost(v, adjacent, fullCardinality, weight);
+                queue.add(new long[]{cost[v], rank[v], v});
+            }
+        }
+
+        List<String> eliminationOrder = new ArrayList<>();
+        boolean[] eliminated = new boolean[n];
+        while (eliminationOrder.size() < candidates.size()){
+            long[] entry = queue.poll();
+            int v = (int) entry[2];
+            if (eliminated[v] || entry[0] != cost[v]){
+                continue;
+            }
+            eliminated[v] = true;
+            eliminationOrder.add(names.get(v));
+
+            //connect the neighbors with each other and remove v
+            Set<Integer> neighbors = adjacent.get(v);
+            for (int a : neighbors){
+                adjacent.get(a).remove(v);
+                for (int b : neighbors){
+                    if (a != b){
+                        adjacent.get(a).add(b);
+                    }
+                }
+            }
+
+            //size and degree change only for the neighbors, fill also for the neighbors' neighbors
+            Set<Integer> affected = new HashSet<>(neighbors);
+            if (heuristic == Heuristic.MIN_FILL || heuristic == Heuristic.WEIGHTED_MIN_FILL){
+                for (int a : neighbors){
+                    affected.addAll(adjacent.get(a));
+                }
+            }
+            for (int u : affected){
+                if (candidate[u] && !eliminated[u]){
+                    long newCost = cost(u, adjacent, fullCardinality, weight);
+                    if (newCost != cost[u]){
+                        cost[u] = newCost;
+                        queue.add(new long[]{newCost, rank[u], u});
+                    }
+                }
+            }
+        }
+        return eliminationOrder;
+    }
+
+    private long cost(int v, List<Set<Integer>> adjacent, long[] fullCardinality, long[] weight){
+        Set<Integer> neighbors = adjacent.get(v);
+        switch (heuristic){
+            case MIN_SIZE: {
+                long size = 1;
+                for (int u : neighbors){
+                    size = multiply(size, fullCardinality[u]);
+                }
+                return size;
+            }
+            case MIN_DEGREE: {
+                long degree = 0;
+                for (int u : neighbors){
+                    if (weight[u] > 1){ //evidence doesn't grow the factor
+                        degree++;
+                    }
+                }
+                return degree;
+            }
+            default: { //min fill and weighted min fill
+                long fill = 0;
+                for (int a : neighbors){
+                    for (int b : neighbors){
+                        if (a < b && weight[a] > 1 && weight[b] > 1 && !adjacent.get(a).contains(b)){
+                            fill += heuristic == Heuristic.MIN_FILL ? 1 : multiply(weight[a], weight[b]);
+                        }
+                    }
+                }
+                return fill;
+            }
+        }
+    }
+
+    private static int addNode(String var, long cardinality, Map<String, Integer> nodeOf, List<String> names, List<Set<Integer>> adjacent, List<Long> weights){
+        Integer node = nodeOf.get(var);
+        if (node == null){
+            node = names.size();
+            nodeOf.put(var, node);
+            names.add(var);
+            adjacent.add(new HashSet<>());
+            weights.add(cardinality);
+        }
+        return node;
+    }
+
+    //multiplication that stops at Long.MAX_VALUE instead of overflowing
+    private static long multiply(long a, long b){
+        if (a != 0 && b > Long.MAX_VALUE / a){
+            return Long.MAX_VALUE;
+        }
+        return a * b;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+
+//what-if session on one network: evidence is added, changed and retracted between queries
+//
+//factors are kept in a cache keyed by the evidence on their scope, so after an evidence change only the CPT factors
+//that involve the changed variable, and the eliminations that depend on them, are recomputed. answers and counts are
+//the same as a fresh VariableElimination.run, the result also reports the reuse. the cache is the session's own, or
+//one shared with other queries (QueryServer passes the network's), then the reuse counts include their hits too
+//
+//  InferenceSession session = new InferenceSession(bn, 3);
+//  session.observe("J", "T").query("B", "T");
+//  session.observe("M", "T").query("B", "T");   //reuses the factors without M
+//  session.retract("J").query("B", "T");
+//
+//a session is meant for one user at a time, it is not thread safe
+public class InferenceSession{
+
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024; //bytes of factors kept by a session
+
+    public static class Result{
+        public double probability;
+        public int addCount; //same counts as a fresh run
+        public int mulCount;
+        public long reusedFactors; //factors taken from the session instead of being built
+        public long computedFactors;
+        public long reusedAdds; //operations of the reused factors that were not done again
+        public long reusedMuls;
+
+        public Result(double probability, int addCount, int mulCount){ //constructor
+            this.probability = probability;
+            this.addCount = addCount;
+            this.mulCount = mulCount;
+        }
+    }
+
+    private final BayesianNetwork bn;
+    private final int algoNum;
+    private final Map<String, String> evidence = new LinkedHashMap<>();
+    private final FactorCache factors;
+
+    public InferenceSession(BayesianNetwork bn, int algoNum){ //constructor
+        this(bn, algoNum, DEFAULT_BUDGET);
+    }
+
+    public InferenceSession(BayesianNetwork bn, int algoNum, long budget){ //constructor
+        this(bn, algoNum, new FactorCache(budget));
+    }
+
+    public InferenceSession(BayesianNetwork bn, int algoNum, FactorCache factors){ //constructor
+        if (algoNum != 2 && algoNum != 3){
+            throw new IllegalArgumentException("sessions run variable elimination, algorithm 2 or 3 (got " + algoNum + ")");
+        }
+        this.bn = bn;
+        this.algoNum = algoNum;
+        this.factors = factors;
+    }
+
+    //adds the evidence var=value, or changes the value if var is already observed
+    public InferenceSession observe(String var, String value){
+        Variable v = bn.getVariableByName(var);
+        if (v == null){
+            throw new IllegalArgumentException("evidence variable '" + var + "' does not exist in the network.");
+        }
+        if (v.getOutcomeIndex(value) < 0){
+            throw new IllegalArgumentException("value '" + value + "' is not valid for variable '" + var + "'");
+        }
+        evidence.put(var, value);
+        return this;
+    }
+
+    public InferenceSession retract(String var){
+        evidence.remove(var);
+        return this;
+    }
+
+    public int getAlgoNum(){
+        return algoNum;
+    }
+
+    public Map<String, String> getEvidence(){
+        return Collections.unmodifiableMap(evidence);
+    }
+
+    //P(var=value | current evidence)
+    public Result query(String var, String value){
+        Query q = new Query(var, value, evidence, algoNum);
+        QueryValidator.validate(q, bn);
+
+        long hits = factors.getHits();
+        long misses = factors.getMisses();
+        long adds = factors.getReusedAdds();
+        long muls = factors.getReusedMuls();
+
+        VariableElimination.Result res = VariableElimination.run(q, bn, factors);
+
+        Result result = new Result(res.probability, res.addCount, res.mulCount);
+        result.reusedFactors = factors.getHits() - hits;
+        result.computedFactors = factors.getMisses() - misses;
+        result.reusedAdds = factors.getReusedAdds() - adds;
+        result.reusedMuls = factors.getReusedMuls() - muls;
+        return result;
+    }
+
+    //drops all kept factors, the evidence stays
+    public void reset(){
+        factors.clear();
+    }
+}
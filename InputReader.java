@@ -11,10 +11,8 @@ public class InputReader{
             String line;
 
             //read each line from file
-            while ((line = reader.readLine()) != null){
-                if (!line.trim().isEmpty()) {
-                    lines.add(line.trim());
-                }
+            while ((line = nextLine(reader)) != null){
+                lines.add(line);
             }
         } catch (IOException e){
             System.out.println("error reading input file: " + e.getMessage());
@@ -22,4 +20,35 @@ public class InputReader{
 
         return lines; //returns all valid lines
     }
+
+    //opens the file to be read a few lines at a time (nextLine, nextLines), null if it can't be opened
+    public static BufferedReader open(String fileName){
+        try {
+            return new BufferedReader(new FileReader(fileName));
+        } catch (IOException e){
+            System.out.println("error reading input file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //next valid (non empty) line, trimmed, null at the end of the file
+    public static String nextLine(BufferedReader reader) throws IOException{
+        String line;
+        while ((line = reader.readLine()) != null){
+            if (!line.trim().isEmpty()) {
+                return line.trim();
+            }
+        }
+        return null;
+    }
+
+    //up to max next valid lines, empty at the end of the file
+    public static List<String> nextLines(BufferedReader reader, int max) throws IOException{
+        List<String> lines = new ArrayList<>();
+        String line;
+        while (lines.size() < max && (line = nextLine(reader)) != null){
+            lines.add(line);
+        }
+        return lines;
+    }
 }
\ No newline at end of file
@@ -22,9 +22,11 @@ public class JointProbability{
         Map<String, String> assignment = q.evidence; //take full assignment from query
 
         int mulCount = 0;
-        double result = 1.0;
+        ScaledDouble result = new ScaledDouble(1.0); //plain double unless -Dve.numeric=scaled
         boolean first = true; //check if this is a first multiplication
 
+        long product = QueryMetrics.start();
+
         //loop over all network variables
         for (Variable var : bn.variables)
         {
@@ -35,7 +37,7 @@ public class JointProbability{
             }
 
             double prob = getProbability(var, value, assignment, bn);//calculate probability considering parents
-            result *= prob;
+            result.multiply(prob, 0);
 
             if(!first){ //count * operations only after the first multiplication
                 mulCount++;
@@ -45,31 +47,28 @@ public class JointProbability{
             //System.out.println("multiply: P(" + var.name + "=" + value + ") = " + prob);
         }
 
-        return new Result(result, mulCount);
+        QueryMetrics.stop("product", product);
+        return new Result(result.toDouble(), mulCount);
     }
 
     private static double getProbability(Variable var, String value, Map<String, String> assignment, BayesianNetwork bn){
 
         //follow position in probability array
         int index = 0;
-        int base = 1;
 
         //loop from last parent to first
         for (int i = var.parents.size() - 1; i >= 0; i--){
-            String parentName = var.parents.get(i);//parent's name
-            Variable parentVar = bn.getVariableByName(parentName); //parent as a variable
-            String val = assignment.get(parentName); //parent's assignment
-            int pos = parentVar.outcomes.indexOf(val); //values position
-
-            //update according to possible values
-            index += pos * base;
-            base *= parentVar.outcomes.size();
+            Variable parentVar = bn.variables.get(var.parentIds[i]); //parent as a variable
+            String val = assignment.get(parentVar.name); //parent's assignment
+            int pos = parentVar.getOutcomeIndex(val); //values position
+
+            //update according to precomputed stride
+            index += pos * var.cptStrides[i];
         }
 
         //updating index according to possible values
-        int valIndex = var.outcomes.indexOf(value);
-        index = index * var.outcomes.size() + valIndex;
+        index += var.getOutcomeIndex(value);
 
-        return var.cpt[index]; //return probability by index
+        return var.cpt.get(index); //return probability by index
     }
 }
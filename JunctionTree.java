@@ -0,0 +1,470 @@
+import java.util.*;
+
+//junction tree (clique tree) compiled once per network, answers every single-variable marginal
+//under the same evidence with one two-pass message propagation
+//disconnected parts of the network get a tree each, a query propagates only in the tree of its variable
+public class JunctionTree{
+
+    public static class Result{
+        public double probability;
+        public int addCount;
+        public int mulCount;
+        public double[] posterior; //P(query var = k | evidence) for every outcome k
+
+        public Result(double probability, int addCount, int mulCount){ //constructor
+            this.probability = probability;
+            this.addCount = addCount;
+            this.mulCount = mulCount;
+        }
+    }
+
+    //all marginals of one tree for one evidence, with the operations the propagation cost
+    private static class Calibration{
+        Map<String, double[]> marginals = new HashMap<>(); //variable -> unnormalized marginal (by outcome index)
+        int addCount;
+        int mulCount;
+    }
+
+    private static final int MAX_CALIBRATIONS = 32; //# (tree, evidence) pairs kept calibrated
+
+    private final BayesianNetwork bn;
+    public final List<List<String>> cliques = new ArrayList<>(); //variables of each clique
+    public final List<List<Integer>> neighbors = new ArrayList<>(); //tree edges between cliques
+    private final List<List<Variable>> assignedCpts = new ArrayList<>(); //CPTs multiplied into each clique
+    private final Map<String, Integer> homeClique = new HashMap<>(); //clique that holds the CPT of each variable
+    private final List<int[]> trees = new ArrayList<>(); //cliques of each tree, parents before children (the first is the root)
+    private int[] tree; //tree of each clique
+    private int[] parent; //parent of each clique in its tree, -1 for a root
+    private final List<List<String>> parentSeparators = new ArrayList<>(); //variables a clique shares with its parent
+
+    private final Map<String, Calibration> calibrations = lru();
+    private final Map<String, Boolean> possible = lru(); //(tree, evidence) -> the evidence has a probability > 0
+
+    private JunctionTree(BayesianNetwork bn){ //use compile()
+        this.bn = bn;
+    }
+
+    //the MAX_CALIBRATIONS last used entries
+    private static <V> Map<String, V> lru(){
+        return new LinkedHashMap<String, V>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest){
+                return size() > MAX_CALIBRATIONS;
+            }
+        };
+    }
+
+    //moralize, triangulate, build cliques and separators and assign every CPT to a clique
+    public static JunctionTree compile(BayesianNetwork bn){
+        JunctionTree tree = new JunctionTree(bn);
+
+        //moral graph: connect every variable with its parents, and the parents with each other
+        Map<String, Set<String>> graph = new HashMap<>();
+        for (Variable var : bn.variables){
+            graph.computeIfAbsent(var.name, k -> new HashSet<>());
+            for (String parent : var.parents){
+                graph.get(var.name).add(parent);
+                graph.computeIfAbsent(parent, k -> new HashSet<>()).add(var.name);
+            }
+            for (int i = 0; i < var.parents.size(); i++){
+                for (int j = i + 1; j < var.parents.size(); j++){
+                    graph.get(var.parents.get(i)).add(var.parents.get(j));
+                    graph.get(var.parents.get(j)).add(var.parents.get(i));
+                }
+            }
+        }
+
+        //triangulate by eliminating the variable with the smallest resulting clique (same idea as GreedyOrdering's min-size)
+        //candidates are sorted by size then name (ties go to the first name), an elimination only changes the sizes of its neighbors
+        Map<String, Long> sizes = new HashMap<>();
+        TreeSet<String> remaining = new TreeSet<>((a, b) -> {
+            int bySize = Long.compare(sizes.get(a), sizes.get(b));
+            return bySize != 0 ? bySize : a.compareTo(b);
+        });
+        for (String var : graph.keySet()){
+            sizes.put(var, cliqueSize(var, graph, bn));
+            remaining.add(var);
+        }
+        List<Set<String>> cliqueSets = new ArrayList<>();
+        Map<String, List<Integer>> cliquesOf = new HashMap<>(); //cliques that contain each variable, by index
+        while (!remaining.isEmpty()){
+            String best = remaining.pollFirst();
+            Set<String> nbrs = graph.get(best);
+
+            List<String> clique = new ArrayList<>();
+            clique.add(best);
+            clique.addAll(new TreeSet<>(nbrs));
+
+            //fill-in edges between the neighbors, then remove the variable
+            for (String a : nbrs){
+                remaining.remove(a); //its size changes, re-sorted below
+                for (String b : nbrs){
+                    if (!a.equals(b)){
+                        graph.get(a).add(b);
+                    }
+                }
+            }
+            for (String nbr : nbrs){
+                graph.get(nbr).remove(best);
+            }
+            for (String nbr : nbrs){
+                sizes.put(nbr, cliqueSize(nbr, graph, bn));
+                remaining.add(nbr);
+            }
+
+            //keep only maximal cliques, a clique that holds this one holds its variable in the fewest cliques
+            String rarest = null;
+            for (String var : clique){
+                int count = cliquesOf.containsKey(var) ? cliquesOf.get(var).size() : 0;
+                if (rarest == null || count < (cliquesOf.containsKey(rarest) ? cliquesOf.get(rarest).size() : 0)){
+                    rarest = var;
+                }
+            }
+            boolean contained = false;
+            for (int other : cliquesOf.getOrDefault(rarest, Collections.emptyList())){
+                if (cliqueSets.get(other).containsAll(clique)){
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained){
+                for (String var : clique){
+                    cliquesOf.computeIfAbsent(var, k -> new ArrayList<>()).add(tree.cliques.size());
+                }
+                tree.cliques.add(clique);
+                cliqueSets.add(new HashSet<>(clique));
+            }
+        }
+
+        //separator sizes, only between cliques that share a variable: {size, i, j} with i < j
+        int n = tree.cliques.size();
+        List<int[]> edges = new ArrayList<>();
+        for (int i = 0; i < n; i++){
+            Map<Integer, Integer> shared = new TreeMap<>();
+            for (String var : tree.cliques.get(i)){
+                for (int j : cliquesOf.get(var)){
+                    if (j > i){
+                        shared.merge(j, 1, Integer::sum);
+                    }
+                }
+            }
+            for (Map.Entry<Integer, Integer> e : shared.entrySet()){
+                edges.add(new int[]{e.getValue(), i, e.getKey()});
+            }
+        }
+
+        //maximum spanning forest over separator sizes (Kruskal), largest separators first, ties by clique index
+        edges.sort((a, b) -> a[0] != b[0] ? Integer.compare(b[0], a[0]) : a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[2], b[2]));
+        int[] set = new int[n]; //union-find over the cliques
+        for (int i = 0; i < n; i++){
+            set[i] = i;
+            tree.neighbors.add(new ArrayList<>());
+            tree.assignedCpts.add(new ArrayList<>());
+        }
+        for (int[] edge : edges){
+            int a = find(set, edge[1]);
+            int b = find(set, edge[2]);
+            if (a != b){
+                set[a] = b;
+                tree.neighbors.get(edge[1]).add(edge[2]);
+                tree.neighbors.get(edge[2]).add(edge[1]);
+            }
+        }
+
+        //roots at the first clique of every tree, cliques listed parents first
+        tree.tree = new int[n];
+        tree.parent = new int[n];
+        Arrays.fill(tree.tree, -1);
+        for (int i = 0; i < n; i++){
+            tree.parentSeparators.add(null);
+        }
+        for (int root = 0; root < n; root++){
+            if (tree.tree[root] >= 0){
+                continue;
+            }
+            List<Integer> order = new ArrayList<>();
+            order.add(root);
+            tree.tree[root] = tree.trees.size();
+            tree.parent[root] = -1;
+            for (int k = 0; k < order.size(); k++){
+                int i = order.get(k);
+                for (int child : tree.neighbors.get(i)){
+                    if (tree.tree[child] < 0){
+                        tree.tree[child] = tree.trees.size();
+                        tree.parent[child] = i;
+                        tree.parentSeparators.set(child, separator(tree.cliques.get(child), cliqueSets.get(i)));
+                        order.add(child);
+                    }
+                }
+            }
+            tree.trees.add(order.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        //every family (variable + parents) is inside some clique thanks to moralization, the first one gets the CPT
+        for (Variable var : bn.variables){
+            for (int i : cliquesOf.get(var.name)){
+                if (cliqueSets.get(i).containsAll(var.parents)){
+                    tree.assignedCpts.get(i).add(var);
+                    tree.homeClique.put(var.name, i);
+                    break;
+                }
+            }
+        }
+
+        return tree;
+    }
+
+    //# rows of the clique a variable would make if it was eliminated now (its neighbors), saturates
+    private static long cliqueSize(String var, Map<String, Set<String>> graph, BayesianNetwork bn){
+        long size = 1;
+        for (String nbr : graph.get(var)){
+            int cardinality = bn.getVariableByName(nbr).outcomes.size();
+            size = size > Long.MAX_VALUE / cardinality ? Long.MAX_VALUE : size * cardinality;
+        }
+        return size;
+    }
+
+    private static int find(int[] set, int i){
+        while (set[i] != i){
+            set[i] = set[set[i]]; //path halving
+            i = set[i];
+        }
+        return i;
+    }
+
+    public static Result run(Query q, BayesianNetwork bn){
+        return bn.getJunctionTree().answer(q);
+    }
+
+    public Result answer(Query q){
+        return answerAll(q)[bn.getVariableByName(q.queryVar).getOutcomeIndex(q.queryValue)];
+    }
+
+    //one result per outcome of the query variable (null for the values ruled out by evidence on the query variable)
+    public static Result[] runAll(Query q, BayesianNetwork bn){
+        return bn.getJunctionTree().answerAll(q);
+    }
+
+    public Result[] answerAll(Query q){
+        int t = tree[homeClique.get(q.queryVar)];
+        Calibration calibration = calibrate(t, local(t, q.evidence));
+
+        //evidence on the other trees doesn't change the answer, but it must be possible
+        Set<Integer> others = new TreeSet<>();
+        for (String var : q.evidence.keySet()){
+            others.add(tree[homeClique.get(var)]);
+        }
+        others.remove(t);
+        for (int other : others){
+            if (!possible(other, local(other, q.evidence))){
+                throw new IllegalStateException("probability of the evidence is 0" + (ScaledDouble.ENABLED ? "" : " (or underflowed, try -Dve.numeric=scaled)"));
+            }
+        }
+
+        double[] marginal = calibration.marginals.get(q.queryVar);
+        Variable queryVar = bn.getVariableByName(q.queryVar);
+        int addCount = calibration.addCount;
+        Result[] results = new Result[marginal.length];
+
+        String observed = q.evidence.get(q.queryVar);
+        if (observed != null){ //validated to be the same value
+            int k = queryVar.getOutcomeIndex(observed);
+            results[k] = new Result(1.0, addCount, calibration.mulCount);
+            results[k].posterior = new double[marginal.length];
+            results[k].posterior[k] = 1.0;
+            return results;
+        }
+
+        //normalize over all outcomes of the query variable
+        double denominator = 0.0;
+        for (int i = 0; i < marginal.length; i++){
+            denominator += marginal[i];
+            if (i > 0){
+                addCount++;
+            }
+        }
+        if (denominator == 0){
+            throw new IllegalStateException("probability of the evidence is 0" + (ScaledDouble.ENABLED ? "" : " (or underflowed, try -Dve.numeric=scaled)"));
+        }
+        double[] posterior = new double[marginal.length];
+        for (int k = 0; k < marginal.length; k++){
+            posterior[k] = marginal[k] / denominator;
+        }
+
+        for (int k = 0; k < marginal.length; k++){
+            results[k] = new Result(posterior[k], addCount, calibration.mulCount);
+            results[k].posterior = posterior;
+        }
+        return results;
+    }
+
+    //the evidence on the variables of tree t, sorted
+    private Map<String, String> local(int t, Map<String, String> evidence){
+        Map<String, String> local = new TreeMap<>();
+        for (Map.Entry<String, String> e : evidence.entrySet()){
+            if (tree[homeClique.get(e.getKey())] == t){
+                local.put(e.getKey(), e.getValue());
+            }
+        }
+        return local;
+    }
+
+    //whether the evidence on tree t has a probability > 0: the collect pass only, its operations are not counted
+    private boolean possible(int t, Map<String, String> local){
+        String key = t + ":" + local;
+        synchronized (possible){
+            Boolean cached = possible.get(key);
+            if (cached != null){
+                return cached;
+            }
+        }
+
+        Factor[] up = new Factor[cliques.size()];
+        Factor root = collect(t, local, up, new int[1], new int[1])[trees.get(t)[0]];
+        boolean result = false;
+        for (double value : root.table){
+            result |= value != 0.0;
+        }
+        synchronized (possible){
+            possible.put(key, result);
+        }
+        return result;
+    }
+
+    //propagate the evidence of tree t in both directions and extract the marginal of each of its variables
+    //evidence on the other trees is independent of this one and doesn't change its marginals once normalized
+    private Calibration calibrate(int t, Map<String, String> local){
+        String key = t + ":" + local;
+        synchronized (calibrations){
+            Calibration cached = calibrations.get(key);
+            if (cached != null){
+                return cached;
+            }
+        }
+
+        int[] order = trees.get(t);
+        int n = cliques.size();
+        int[] addCounter = new int[1];
+        int[] mulCounter = new int[1];
+        Factor[] up = new Factor[n]; //message from a clique to its parent
+        Factor[] collected = collect(t, local, up, addCounter, mulCounter);
+
+        //distribute, parents first: the belief of a clique is its collected product with the message of its parent,
+        //the message to a child is the belief summed down to their separator, divided by the message of that child
+        Calibration calibration = new Calibration();
+        Factor[] down = new Factor[n]; //message from the parent of a clique
+        for (int i : order){
+            Factor belief = parent[i] < 0 ? collected[i] : VariableElimination.join(collected[i], down[i], mulCounter);
+            collected[i] = null;
+            for (int child : neighbors.get(i)){
+                if (child != parent[i]){
+                    down[child] = divide(marginalize(belief, parentSeparators.get(child), addCounter), up[child], mulCounter);
+                }
+            }
+
+            //the marginal of each variable whose CPT is in this clique
+            for (Variable var : assignedCpts.get(i)){
+                Factor marginal = belief;
+                for (String other : belief.variables){
+                    if (!other.equals(var.name)){
+                        marginal = VariableElimination.eliminate(marginal, other, addCounter);
+                    }
+                }
+                double[] values = new double[var.outcomes.size()];
+                for (int row = 0; row < marginal.table.length; row++){
+                    values[marginal.outcomeAt(row, 0)] = marginal.table[row];
+                }
+                calibration.marginals.put(var.name, values);
+            }
+        }
+        calibration.addCount = addCounter[0];
+        calibration.mulCount = mulCounter[0];
+
+        synchronized (calibrations){
+            calibrations.put(key, calibration);
+        }
+        return calibration;
+    }
+
+    //collect pass over tree t, children first: the product of the CPT factors of every clique with the messages
+    //of its children, summed down to the separator with its parent in up. returns the products by clique
+    private Factor[] collect(int t, Map<String, String> local, Factor[] up, int[] addCounter, int[] mulCounter){
+        int[] order = trees.get(t);
+        Factor[] collected = new Factor[cliques.size()];
+        for (int k = order.length - 1; k >= 0; k--){
+            int i = order[k];
+            List<Factor> factors = new ArrayList<>();
+            for (Variable var : assignedCpts.get(i)){
+                factors.add(Factor.createFromVariable(var, local, bn));
+            }
+            for (int child : neighbors.get(i)){
+                if (child != parent[i]){
+                    factors.add(up[child]);
+                }
+            }
+            collected[i] = product(factors, mulCounter);
+            if (parent[i] >= 0){
+                up[i] = marginalize(collected[i], parentSeparators.get(i), addCounter);
+            }
+        }
+        return collected;
+    }
+
+    //product of the factors, constant 1 for a clique without CPTs and incoming messages
+    private static Factor product(List<Factor> factors, int[] mulCounter){
+        if (factors.isEmpty()){
+            Factor unit = new Factor(new ArrayList<String>(), new int[0], new int[0], new int[0]);
+            unit.table[0] = 1.0;
+            return unit;
+        }
+        return VariableElimination.joinMultipleFactors(factors, mulCounter);
+    }
+
+    //f summed down to the given variables
+    private static Factor marginalize(Factor f, List<String> keep, int[] addCounter){
+        Factor result = f;
+        for (String var : f.variables){
+            if (!keep.contains(var)){
+                result = VariableElimination.eliminate(result, var, addCounter);
+            }
+        }
+        return result;
+    }
+
+    //f divided by g row by row, the variables of g are in f (maybe in another order), 0 / 0 = 0
+    //a division counts as a multiplication
+    private static Factor divide(Factor f, Factor g, int[] mulCounter){
+        int n = f.variables.size();
+        int[] strides = new int[n]; //stride of each variable of f inside g, 0 if g doesn't depend on it
+        for (int i = 0; i < n; i++){
+            int pos = g.indexOf(f.variables.get(i));
+            strides[i] = pos >= 0 ? g.strides[pos] : 0;
+        }
+        Factor result = new Factor(f.variables, f.varIds, f.cardinalities, f.offsets);
+        for (int row = 0; row < f.table.length; row++){
+            int index = 0;
+            for (int i = 0; i < n; i++){
+                index += (row / f.strides[i]) % f.cardinalities[i] * strides[i];
+            }
+            result.table[row] = g.table[index] == 0.0 ? 0.0 : f.table[row] / g.table[index];
+        }
+        mulCounter[0] += result.table.length;
+        result.scale = f.scale - g.scale;
+        if (ScaledDouble.ENABLED){
+            result.rescale();
+        }
+        QueryMetrics.factor(result);
+        return result;
+    }
+
+    //variables of a that are also in b, in the order of a
+    private static List<String> separator(List<String> a, Set<String> b){
+        List<String> result = new ArrayList<>();
+        for (String var : a){
+            if (b.contains(var)){
+                result.add(var);
+            }
+        }
+        return result;
+    }
+}
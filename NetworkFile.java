@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+//compiled binary network format, written once from a parsed network and opened with a memory mapped file
+//
+//layout (little endian):
+//  int magic, int version, int # variables, int 0, long offset of the CPT area
+//  per variable: name, int # outcomes, outcomes, int # parents, parent ids, int cpt length   (strings: int length + UTF-8)
+//  CPT area (8 byte aligned): the CPTs of all variables as doubles, in variable order
+//
+//the CPTs are not copied, each Variable.cpt is a view of the mapped file, so loading is near instant and
+//processes on the same host share the pages from the page cache
+public class NetworkFile{
+
+    public static final String EXTENSION = ".bnet";
+    private static final int MAGIC = 0x424E4554; //"BNET"
+    private static final int VERSION = 1;
+    private static final long CHUNK = 1L << 30; //max bytes in one mapping of the CPT area
+
+    //usage: java NetworkFile <network.xml> <network.bnet>, exits with 1 (and writes nothing) if the XML is not valid
+    public static void main(String[] args) throws IOException{
+        if (args.length != 2){
+            System.out.println("usage: java NetworkFile <network.xml> <network" + EXTENSION + ">");
+            System.exit(2);
+        }
+        BayesianNetwork bn;
+        try {
+            bn = XMLParser.parse(args[0]);
+        } catch (Exception e) {
+            System.out.println("error reading XML: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        write(bn, args[1]);
+    }
+
+    //network by file name: compiled binary for .bnet files, XML otherwise
+    public static BayesianNetwork load(String fileName){
+        if (fileName.endsWith(EXTENSION)){
+            try {
+                return read(fileName);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("error reading network file: " + e.getMessage());
+                return new BayesianNetwork();
+            }
+        }
+        return XMLParser.readXML(fileName);
+    }
+
+    public static void write(BayesianNetwork bn, String fileName) throws IOException{
+        //variable records
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Variable var : bn.variables){
+            writeString(records, var.name);
+            writeInt(records, var.outcomes.size());
+            for (String outcome : var.outcomes){
+                writeString(records, outcome);
+            }
+            writeInt(records, var.parentIds.length);
+            for (int parentId : var.parentIds){
+                writeInt(records, parentId);
+            }
+            writeInt(records, var.cpt.capacity());
+        }
+
+        long cptOffset = align8(24 + records.size());
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = ByteBuffer.allocate((int) cptOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(bn.variables.size()).putInt(0).putLong(cptOffset);
+            header.put(records.toByteArray());
+            ((Buffer) header).position(0); //padding up to cptOffset stays 0
+            writeFully(channel, header);
+
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (Variable var : bn.variables){
+                for (int i = 0; i < var.cpt.capacity(); i++){
+                    if (chunk.remaining() < 8){
+                        ((Buffer) chunk).flip();
+                        writeFully(channel, chunk);
+                        ((Buffer) chunk).clear();
+                    }
+                    chunk.putDouble(var.cpt.get(i));
+                }
+            }
+            ((Buffer) chunk).flip();
+            writeFully(channel, chunk);
+        }
+    }
+
+    public static BayesianNetwork read(String fileName) throws IOException{
+        BayesianNetwork bn = new BayesianNetwork();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)){
+            ByteBuffer preamble = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, preamble, 0);
+            if (preamble.getInt() != MAGIC){
+                throw new IOException(fileName + " is not a compiled network file");
+            }
+            int version = preamble.getInt();
+            if (version != VERSION){
+                throw new IOException("unsupported network file version " + version);
+            }
+            int count = preamble.getInt();
+            preamble.getInt();
+            long cptOffset = preamble.getLong();
+            long end = channel.size();
+            if (count < 0 || cptOffset < 24 || cptOffset > end || cptOffset - 24 > Integer.MAX_VALUE){
+                throw new IOException(fileName + " has a corrupt header (" + count + " variables, CPTs at " + cptOffset + " of " + end + " bytes)");
+            }
+
+            //records are small, read them on the heap
+            ByteBuffer records = ByteBuffer.allocate((int) (cptOffset - 24)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, records, 24);
+
+            int[][] parentIds = new int[count][];
+            int[] cptLengths = new int[count];
+            try {
+                for (int i = 0; i < count; i++){
+                    Variable var = new Variable();
+                    var.name = readString(records);
+                    int outcomes = records.getInt();
+                    for (int k = 0; k < outcomes; k++){
+                        var.outcomes.add(readString(records));
+                    }
+                    parentIds[i] = new int[records.getInt()];
+                    for (int p = 0; p < parentIds[i].length; p++){
+                        parentIds[i][p] = records.getInt();
+                    }
+                    cptLengths[i] = records.getInt();
+                    bn.addVariable(var);
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException(fileName + " has corrupt variable records");
+            }
+
+            //every CPT has one value per combination of the variable and its parents, and the file ends with the last one
+            long expectedEnd = cptOffset;
+            for (int i = 0; i < count; i++){
+                Variable var = bn.variables.get(i);
+                long expected = var.outcomes.size();
+                for (int parentId : parentIds[i]){
+                    if (parentId < 0 || parentId >= count || parentId == i){
+                        throw new IOException(fileName + ": variable '" + var.name + "' has an invalid parent id " + parentId);
+                    }
+                    Variable parent = bn.variables.get(parentId);
+                    var.parents.add(parent.name);
+                    expected = Math.min(expected * parent.outcomes.size(), Integer.MAX_VALUE + 1L); //no overflow, never equal
+                }
+                if (var.outcomes.isEmpty() || cptLengths[i] != expected){
+                    throw new IOException(fileName + ": CPT of '" + var.name + "' has " + cptLengths[i] + " values, expected " + expected);
+                }
+                expectedEnd += 8L * cptLengths[i];
+            }
+            if (end != expectedEnd){
+                throw new IOException(fileName + " has " + end + " bytes, its header describes " + expectedEnd + (end < expectedEnd ? " (truncated)" : ""));
+            }
+
+            //map the CPT area, in chunks that always hold whole CPTs
+            MappedByteBuffer mapped = null;
+            long mappedStart = 0;
+            long offset = cptOffset;
+            for (int i = 0; i < count; i++){
+                long bytes = 8L * cptLengths[i];
+                if (mapped == null || offset + bytes > mappedStart + mapped.capacity()){
+                    mappedStart = offset;
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(end - offset, Math.max(CHUNK, bytes)));
+                }
+                ByteBuffer view = mapped.duplicate();
+                ((Buffer) view).position((int) (offset - mappedStart));
+                ((Buffer) view).limit((int) (offset - mappedStart + bytes));
+                bn.variables.get(i).cpt = view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                offset += bytes;
+            }
+        } //the mappings stay valid after the channel is closed
+
+        bn.compile(); //build lookup tables for inference
+        return bn;
+    }
+
+    private static long align8(long offset){
+        return (offset + 7) & ~7L;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value){
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in){
+        int length = in.getInt();
+        if (length > in.remaining()){
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException{
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, position + buffer.position()) < 0){
+                throw new EOFException("network file is truncated");
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.*;
+
+//generates random Bayesian networks in the XML format read by XMLParser
+//parents of each variable are picked among the 'window' variables before it, which keeps the treewidth bounded
+public class NetworkGenerator{
+
+    //usage: java NetworkGenerator <file> <variables> <maxParents> <outcomes> [window] [seed]
+    public static void main(String[] args) throws IOException{
+        if (args.length < 4){
+            System.out.println("usage: java NetworkGenerator <file> <variables> <maxParents> <outcomes> [window] [seed]");
+            return;
+        }
+        int variables = Integer.parseInt(args[1]);
+        int maxParents = Integer.parseInt(args[2]);
+        int outcomes = Integer.parseInt(args[3]);
+        int window = args.length > 4 ? Integer.parseInt(args[4]) : 2 * maxParents;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+        try (Writer writer = new BufferedWriter(new FileWriter(args[0]))){
+            writer.write(generateXML(variables, maxParents, outcomes, window, seed));
+        }
+    }
+
+    //variables are named V0, V1, ... (zero padded, so alphabetical order is creation order) with outcomes v1, v2, ...
+    //the same arguments always give the same network
+    public static String generateXML(int variables, int maxParents, int outcomes, int window, long seed){
+        Random random = new Random(seed);
+        String nameFormat = "V%0" + String.valueOf(Math.max(1, variables - 1)).length() + "d";
+        StringBuilder xml = new StringBuilder("<NETWORK>\n");
+
+        for (int i = 0; i < variables; i++){
+            xml.append("<VARIABLE>\n\t<NAME>").append(String.format(nameFormat, i)).append("</NAME>\n");
+            for (int k = 1; k <= outcomes; k++){
+                xml.append("\t<OUTCOME>v").append(k).append("</OUTCOME>\n");
+            }
+            xml.append("</VARIABLE>\n\n");
+        }
+
+        for (int i = 0; i < variables; i++){
+            //random parents among the previous variables in the window, the graph is a DAG by construction
+            List<Integer> pool = new ArrayList<>();
+            for (int p = Math.max(0, i - window); p < i; p++){
+                pool.add(p);
+            }
+            Collections.shuffle(pool, random);
+            int parentCount = Math.min(pool.size(), random.nextInt(maxParents + 1));
+            List<Integer> parents = new ArrayList<>(pool.subList(0, parentCount));
+            Collections.sort(parents);
+
+            xml.append("<DEFINITION>\n\t<FOR>").append(String.format(nameFormat, i)).append("</FOR>\n");
+            int rows = 1;
+            for (int p : parents){
+                xml.append("\t<GIVEN>").append(String.format(nameFormat, p)).append("</GIVEN>\n");
+                rows *= outcomes;
+            }
+
+            //one distribution over the outcomes for every combination of the parents
+            xml.append("\t<TABLE>");
+            for (int row = 0; row < rows; row++){
+                double[] probs = new double[outcomes];
+                double sum = 0.0;
+                for (int k = 0; k < outcomes; k++){
+                    probs[k] = 0.05 + random.nextDouble();
+                    sum += probs[k];
+                }
+                for (int k = 0; k < outcomes; k++){
+                    if (row > 0 || k > 0){
+                        xml.append(' ');
+                    }
+                    xml.append(probs[k] / sum);
+                }
+            }
+            xml.append("</TABLE>\n</DEFINITION>\n\n");
+        }
+
+        return xml.append("</NETWORK>").toString();
+    }
+}
@@ -2,7 +2,7 @@ import java.util.*;
 
 public class Query{
     public String originalQuery;
-    public int algoNum; //1- simple inference, 2 - variable elimination(by abc), 3 - variable elimination(by heuristic)
+    public int algoNum; //1- simple inference, 2 - variable elimination(by abc), 3 - variable elimination(by heuristic), 4 - junction tree, 5 - likelihood weighting, 6 - gibbs sampling, 7 - cutset conditioning
     public boolean conditional;
     public String queryVar;
     public String queryValue;
@@ -24,7 +24,7 @@ public class Query{
         if (afterParen < line.length() && line.charAt(afterParen) == ','){
             String algoStr = line.substring(afterParen + 1).trim();
 
-            if (algoStr.matches("[123]")){
+            if (algoStr.matches("[1-7]")){
                 this.algoNum = Integer.parseInt(algoStr);
             } else {
                 throw new IllegalArgumentException("invalid algorithm number: " + algoStr);
@@ -73,4 +73,24 @@ public class Query{
         }
     }
 
+    //conditional query built from its parts, e.g. by InferenceSession (the evidence may be empty)
+    public Query(String queryVar, String queryValue, Map<String, String> evidence, int algoNum){
+        this.queryVar = queryVar;
+        this.queryValue = queryValue;
+        this.evidence.putAll(evidence);
+        this.algoNum = algoNum;
+        this.conditional = true;
+
+        StringBuilder line = new StringBuilder("P(").append(queryVar).append('=').append(queryValue).append('|');
+        boolean first = true;
+        for (Map.Entry<String, String> e : evidence.entrySet()){
+            if (!first){
+                line.append(',');
+            }
+            line.append(e.getKey()).append('=').append(e.getValue());
+            first = false;
+        }
+        this.originalQuery = line.append("),").append(algoNum).toString();
+    }
+
 }
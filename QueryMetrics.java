@@ -0,0 +1,277 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import javax.management.ObjectName;
+
+//measurements of one query, collected by the engines while the query runs on the current thread (-Dex1.metrics=true)
+//Ex1 writes one JSON object per query to output.metrics.jsonl, in input order
+//-Dex1.jmx=true also publishes running totals as the MXBean "bn:type=QueryStats"
+//when no query is measured on the thread, every static call below is a no-op
+//an engine that splits one query across threads attaches its metrics to them, phase times and allocated bytes then
+//add up all threads
+public class QueryMetrics{
+
+    public static final boolean ENABLED = Boolean.getBoolean("ex1.metrics");
+    public static final boolean JMX = Boolean.getBoolean("ex1.jmx");
+
+    private static final ThreadLocal<QueryMetrics> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<long[]> MARK = ThreadLocal.withInitial(() -> new long[1]); //allocation counter of the thread at its last switch
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Stats STATS = new Stats();
+
+    static {
+        if (JMX){
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(STATS, new ObjectName("bn:type=QueryStats"));
+            } catch (Exception e) {
+                System.out.println("failed to register query statistics: " + e.getMessage());
+            }
+        }
+    }
+
+    public final String query;
+    public String engine = "none";
+    public String result;
+    public long totalNanos;
+    public final Map<String, Long> phaseNanos = new LinkedHashMap<>(); //wall time by phase, in the order first seen
+    public long factors; //intermediate factors built (joins and sum outs)
+    public long maxFactorSize; //# entries of the largest one
+    public List<String> eliminationOrder; //first order used, null if the engine doesn't eliminate
+    public long allocatedBytes = -1; //bytes allocated by the query's thread and the workers it attached, -1 if the JVM can't tell
+    public String sharedWith; //query whose computation also answered this one (same variable and evidence), null if none
+
+    private long startNanos;
+
+    public QueryMetrics(String query){ //constructor
+        this.query = query;
+    }
+
+    //starts measuring on the current thread
+    public void begin(){
+        allocatedBytes = -1;
+        switchTo(this);
+        startNanos = System.nanoTime();
+    }
+
+    //stops measuring, result is the output line of the query
+    public void end(String result){
+        totalNanos = System.nanoTime() - startNanos;
+        switchTo(null);
+        this.result = result;
+        if (JMX){
+            STATS.record(this);
+        }
+    }
+
+    //metrics measured on the current thread, null if none
+    public static QueryMetrics current(){
+        return CURRENT.get();
+    }
+
+    //measures the work of the current thread into m (null: nothing), returns what was measured before
+    public static QueryMetrics attach(QueryMetrics m){
+        return switchTo(m);
+    }
+
+    //makes m the metrics of the current thread, the bytes the thread allocated since its last switch go to the
+    //metrics it leaves. returns them
+    private static QueryMetrics switchTo(QueryMetrics m){
+        QueryMetrics previous = CURRENT.get();
+        if (previous == null && m == null){
+            return null;
+        }
+        long now = allocatedBytes();
+        long[] mark = MARK.get();
+        if (previous != null && now >= 0){
+            synchronized (previous){
+                previous.allocatedBytes = Math.max(0, previous.allocatedBytes) + now - mark[0];
+            }
+        }
+        mark[0] = now;
+        if (m == null){
+            CURRENT.remove();
+        } else {
+            CURRENT.set(m);
+        }
+        return previous;
+    }
+
+    //start of a phase, pass the value to stop()
+    public static long start(){
+        return CURRENT.get() != null ? System.nanoTime() : 0;
+    }
+
+    //adds the time since start to the phase
+    public static void stop(String phase, long start){
+        QueryMetrics m = CURRENT.get();
+        if (m != null){
+            long nanos = System.nanoTime() - start;
+            synchronized (m){
+                m.phaseNanos.merge(phase, nanos, Long::sum);
+            }
+        }
+    }
+
+    public static void engine(String name){
+        QueryMetrics m = CURRENT.get();
+        if (m != null){
+            m.engine = name;
+        }
+    }
+
+    public static void factor(Factor f){
+        factors(1, f.table.length);
+    }
+
+    //count factors, the largest with maxSize entries, e.g. the ones a cached elimination step stands for
+    public static void factors(int count, long maxSize){
+        QueryMetrics m = CURRENT.get();
+        if (m != null){
+            synchronized (m){
+                m.factors += count;
+                m.maxFactorSize = Math.max(m.maxFactorSize, maxSize);
+            }
+        }
+    }
+
+    public static void order(List<String> order){
+        QueryMetrics m = CURRENT.get();
+        if (m != null){
+            synchronized (m){
+                if (m.eliminationOrder == null){
+                    m.eliminationOrder = new ArrayList<>(order);
+                }
+            }
+        }
+    }
+
+    //one line of output.metrics.jsonl, times in microseconds
+    public String toJson(){
+        StringBuilder json = new StringBuilder("{\"query\":");
+        quote(json, query);
+        json.append(",\"engine\":");
+        quote(json, engine);
+        json.append(",\"result\":");
+        quote(json, result);
+        json.append(",\"totalMicros\":").append(totalNanos / 1000);
+        json.append(",\"phaseMicros\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()){
+            if (!first){
+                json.append(',');
+            }
+            quote(json, phase.getKey());
+            json.append(':').append(phase.getValue() / 1000);
+            first = false;
+        }
+        json.append("},\"factors\":").append(factors);
+        json.append(",\"maxFactorSize\":").append(maxFactorSize);
+        json.append(",\"eliminationOrder\":");
+        if (eliminationOrder == null){
+            json.append("null");
+        } else {
+            json.append('[');
+            for (int i = 0; i < eliminationOrder.size(); i++){
+                if (i > 0){
+                    json.append(',');
+                }
+                quote(json, eliminationOrder.get(i));
+            }
+            json.append(']');
+        }
+        json.append(",\"allocatedBytes\":").append(allocatedBytes);
+        json.append(",\"sharedWith\":");
+        quote(json, sharedWith);
+        return json.append('}').toString();
+    }
+
+    private static void quote(StringBuilder json, String value){
+        if (value == null){
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                json.append('\\').append(c);
+            } else if (c < 0x20){
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    //bytes allocated so far by the current thread (HotSpot), -1 when not supported
+    private static long allocatedBytes(){
+        if (THREADS instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()){
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    //running totals over all measured queries
+    public interface StatsMXBean{
+        long getQueries();
+        long getFailedQueries();
+        double getMeanMillis();
+        double getMaxMillis();
+        long getMaxFactorSize();
+        String getLastQuery();
+    }
+
+    public static class Stats implements StatsMXBean{
+        private long queries;
+        private long failedQueries;
+        private long totalNanos;
+        private long maxNanos;
+        private long maxFactorSize;
+        private String lastQuery;
+
+        synchronized void record(QueryMetrics m){
+            queries++;
+            if (QueryRunner.ERROR_LINE.equals(m.result)){
+                failedQueries++;
+            }
+            totalNanos += m.totalNanos;
+            maxNanos = Math.max(maxNanos, m.totalNanos);
+            maxFactorSize = Math.max(maxFactorSize, m.maxFactorSize);
+            lastQuery = m.query;
+        }
+
+        @Override
+        public synchronized long getQueries(){
+            return queries;
+        }
+
+        @Override
+        public synchronized long getFailedQueries(){
+            return failedQueries;
+        }
+
+        @Override
+        public synchronized double getMeanMillis(){
+            return queries == 0 ? 0.0 : totalNanos / 1e6 / queries;
+        }
+
+        @Override
+        public synchronized double getMaxMillis(){
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public synchronized long getMaxFactorSize(){
+            return maxFactorSize;
+        }
+
+        @Override
+        public synchronized String getLastQuery(){
+            return lastQuery;
+        }
+    }
+}
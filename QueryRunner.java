@@ -0,0 +1,229 @@
+import java.util.*;
+
+public class QueryRunner{
+
+    public static final String ERROR_LINE = "0.00000,0,0"; //written for every query that couldn't be answered
+
+    //parse, validate and answer one query line, returns the line to write to the output file
+    public static String answer(String queryLine, BayesianNetwork bn){
+        return answer(queryLine, bn, null);
+    }
+
+    //same, measured into metrics (when not null)
+    public static String answer(String queryLine, BayesianNetwork bn, QueryMetrics metrics){
+        if (metrics == null){
+            return evaluate(queryLine, bn);
+        }
+        String line = null;
+        metrics.begin();
+        try {
+            line = evaluate(queryLine, bn);
+            return line;
+        } finally {
+            metrics.end(line);
+        }
+    }
+
+    //splits the query lines into groups that are answered together, each group is a list of line indices in input order
+    //and the groups are ordered by their first line. conditional queries of an exact engine that differ only in the
+    //asked value, P(X=x1|e) and P(X=x2|e) with the same algorithm, share a group; every other line is a group of its own
+    public static List<int[]> group(List<String> queryLines){
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < queryLines.size(); i++){
+            String key = "#" + i;
+            try {
+                Query q = new Query(queryLines.get(i));
+                if (q.conditional && shareable(q.algoNum)){
+                    key = q.algoNum + "|" + q.queryVar + "|" + q.evidence;
+                }
+            } catch (Exception e) {
+                //reported when the line is answered
+            }
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        List<int[]> result = new ArrayList<>();
+        for (List<Integer> lines : groups.values()){
+            result.add(lines.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return result;
+    }
+
+    //engines that compute every outcome of the query variable at once (sampling estimates a single value)
+    private static boolean shareable(int algoNum){
+        return algoNum == 1 || algoNum == 2 || algoNum == 3 || algoNum == 4 || algoNum == CutsetConditioning.ALGORITHM;
+    }
+
+    //answers the lines of one group from group(), in the group's order. the posterior is computed once, measured
+    //into the metrics of the first line, the other lines are marked as shared with it
+    public static String[] answer(List<String> queryLines, int[] group, BayesianNetwork bn, List<QueryMetrics> metrics){
+        String[] lines = new String[group.length];
+        if (group.length == 1){
+            lines[0] = answer(queryLines.get(group[0]), bn, metrics.get(group[0]));
+            return lines;
+        }
+
+        //the lines differ only in the asked value, the invalid ones are answered (and reported) on their own
+        List<Integer> valid = new ArrayList<>();
+        Query first = null;
+        for (int i = 0; i < group.length; i++){
+            Query q = new Query(queryLines.get(group[i]));
+            try {
+                QueryValidator.validate(q, bn);
+            } catch (Exception e) {
+                lines[i] = answer(queryLines.get(group[i]), bn, metrics.get(group[i]));
+                continue;
+            }
+            if (first == null){
+                first = q;
+            }
+            valid.add(i);
+        }
+        if (first == null){
+            return lines;
+        }
+
+        Variable queryVar = bn.getVariableByName(first.queryVar);
+        QueryMetrics measured = metrics.get(group[valid.get(0)]);
+        String[] answers = null;
+        if (measured != null){
+            measured.begin();
+        }
+        try {
+            answers = evaluateAll(first, bn);
+        } catch (Exception e) {
+            for (int i : valid){
+                System.out.println("skipping invalid query: " + queryLines.get(group[i]) + " – " + e.getMessage());
+            }
+        } finally {
+            if (measured != null){
+                measured.end(answers == null ? ERROR_LINE : answers[queryVar.getOutcomeIndex(first.queryValue)]);
+            }
+        }
+
+        for (int i : valid){
+            String line = ERROR_LINE;
+            if (answers != null){
+                String value = new Query(queryLines.get(group[i])).queryValue;
+                String answer = answers[queryVar.getOutcomeIndex(value)];
+                line = answer != null ? answer : ERROR_LINE;
+            }
+            lines[i] = line;
+
+            QueryMetrics m = metrics.get(group[i]);
+            if (m != null && m != measured){
+                m.begin();
+                QueryMetrics.engine(measured.engine);
+                m.sharedWith = measured.query;
+                m.end(line);
+            }
+        }
+        return lines;
+    }
+
+    //output lines for every outcome of the query variable of a valid conditional query (null for the values
+    //ruled out by evidence on the query variable)
+    private static String[] evaluateAll(Query q, BayesianNetwork bn){
+        int k = bn.getVariableByName(q.queryVar).outcomes.size();
+        String[] lines = new String[k];
+        switch (q.algoNum) {
+            case 1: {
+                QueryMetrics.engine("simple-inference");
+                SimpleInference.Result[] res = SimpleInference.runAll(q, bn);
+                for (int i = 0; i < k; i++){
+                    if (res[i] != null){
+                        lines[i] = String.format("%.5f,%d,%d", res[i].probability, res[i].addCount, res[i].mulCount);
+                    }
+                }
+                return lines;
+            }
+            case 2:
+            case 3: {
+                QueryMetrics.engine("variable-elimination");
+                VariableElimination.Result[] res = VariableElimination.runAll(q, bn);
+                for (int i = 0; i < k; i++){
+                    if (res[i] != null){
+                        lines[i] = String.format("%.5f,%d,%d", res[i].probability, res[i].addCount, res[i].mulCount);
+                    }
+                }
+                return lines;
+            }
+            case 4: {
+                QueryMetrics.engine("junction-tree");
+                JunctionTree.Result[] res = JunctionTree.runAll(q, bn);
+                for (int i = 0; i < k; i++){
+                    if (res[i] != null){
+                        lines[i] = String.format("%.5f,%d,%d", res[i].probability, res[i].addCount, res[i].mulCount);
+                    }
+                }
+                return lines;
+            }
+            case CutsetConditioning.ALGORITHM: {
+                QueryMetrics.engine("cutset-conditioning");
+                CutsetConditioning.Result[] res = CutsetConditioning.runAll(q, bn);
+                for (int i = 0; i < k; i++){
+                    if (res[i] != null){
+                        lines[i] = String.format("%.5f,%d,%d", res[i].probability, res[i].addCount, res[i].mulCount);
+                    }
+                }
+                return lines;
+            }
+            default: {
+                throw new IllegalArgumentException("algorithm " + q.algoNum + " doesn't answer all values at once");
+            }
+        }
+    }
+
+    private static String evaluate(String queryLine, BayesianNetwork bn){
+        try {
+            long parse = QueryMetrics.start();
+            Query q = new Query(queryLine);
+            QueryValidator.validate(q, bn);
+            QueryMetrics.stop("parse", parse);
+
+            if(!q.conditional){ //full joint probability
+                QueryMetrics.engine("joint");
+                JointProbability.Result res = JointProbability.run(q, bn);
+                res.print();
+
+                return String.format("%.5f,0,%d", res.probability, res.mulCount); //in full joint probability there is no additions operations
+            }
+
+            switch (q.algoNum) {
+                case 1: { //joint probability
+                    QueryMetrics.engine("simple-inference");
+                    SimpleInference.Result res = SimpleInference.run(q, bn);
+                    return String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
+                }
+                case 2:
+                case 3: { //variable elimination
+                    QueryMetrics.engine("variable-elimination");
+                    VariableElimination.Result res = VariableElimination.run(q, bn);
+                    return String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
+                }
+                case 4: { //junction tree
+                    QueryMetrics.engine("junction-tree");
+                    JunctionTree.Result res = JunctionTree.run(q, bn);
+                    return String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
+                }
+                case CutsetConditioning.ALGORITHM: { //exact, elimination per instantiation of a loop cutset
+                    QueryMetrics.engine("cutset-conditioning");
+                    CutsetConditioning.Result res = CutsetConditioning.run(q, bn);
+                    return String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount);
+                }
+                case SamplingInference.LIKELIHOOD_WEIGHTING:
+                case SamplingInference.GIBBS: { //approximate, the 4th field is the half width of the 95% confidence interval
+                    QueryMetrics.engine(q.algoNum == SamplingInference.GIBBS ? "gibbs" : "likelihood-weighting");
+                    SamplingInference.Result res = SamplingInference.run(q, bn);
+                    return String.format("%.5f,%d,%d,%.5f", res.probability, res.addCount, res.mulCount, res.halfWidth);
+                }
+                default: {
+                    return ERROR_LINE;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("skipping invalid query: " + queryLine + " – " + e.getMessage());
+            return ERROR_LINE;
+        }
+    }
+}
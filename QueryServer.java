@@ -0,0 +1,289 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+//long running query server: networks stay loaded and warm, answers are cached
+//
+//line protocol (stdin/stdout, or a local socket with --port), one response line per request line, in request order:
+//  NET <file>     load a network (XML or .bnet) and use it for the next queries -> "OK <# variables>" or "ERROR <reason>"
+//  P(...),<algo>  any query line of input.txt                                   -> "<result> <latency>us"
+//  OBSERVE X=x    add (or change) evidence of the connection's what-if session  -> "OK <# observed>" or "ERROR <reason>"
+//  RETRACT X      remove evidence of the session                                -> "OK <# observed>"
+//  ASK X=x[,algo] P(X=x | session evidence), algorithm 2 (default) or 3         -> "<result> <latency>us reused=<# factors>"
+//  STATS          cache statistics
+//the session runs on the network's factor cache, so after an OBSERVE only the factors the new evidence touches are
+//recomputed (InferenceSession). NET starts a new session
+//  QUIT           close the connection
+//clients may send many lines without waiting (pipelining), queries are answered concurrently
+public class QueryServer{
+
+    private static final int THREADS = Integer.getInteger("server.threads", Runtime.getRuntime().availableProcessors());
+    private static final int CACHE_ENTRIES = Integer.getInteger("server.cache.entries", 10000);
+    private static final int MAX_PENDING = 1024; //# requests read ahead of the written responses
+    private static final int SESSION_ALGORITHM = 2; //of ASK without an algorithm
+
+    private final Map<String, BayesianNetwork> networks = new ConcurrentHashMap<>(); //file name -> loaded network
+    private final Map<String, String> results; //network + parsed query (key()) -> result line
+    private final ExecutorService workers = new ForkJoinPool(THREADS);
+    private long hits = 0;
+    private long misses = 0;
+
+    public QueryServer(int cacheEntries){ //constructor
+        this.results = new LinkedHashMap<String, String>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest){
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    //usage: java QueryServer [--port N] [network]
+    public static void main(String[] args) throws IOException{
+        int port = -1;
+        String network = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--port") && i + 1 < args.length){
+                port = Integer.parseInt(args[++i]);
+            } else {
+                network = args[i];
+            }
+        }
+
+        QueryServer server = new QueryServer(CACHE_ENTRIES);
+        if (network != null){
+            server.network(network);
+        }
+
+        if (port < 0){
+            //stdout carries the protocol, diagnostics of the engines go to stderr
+            PrintStream protocol = System.out;
+            System.setOut(System.err);
+            server.serve(System.in, protocol, network);
+            server.workers.shutdown();
+        } else {
+            try (ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())){
+                System.err.println("query server listening on " + socket.getLocalSocketAddress());
+                while (true){
+                    Socket client = socket.accept();
+                    String defaultNetwork = network;
+                    Thread session = new Thread(() -> {
+                        try (Socket s = client){
+                            server.serve(s.getInputStream(), s.getOutputStream(), defaultNetwork);
+                        } catch (IOException e) {
+                            System.err.println("connection closed: " + e.getMessage());
+                        }
+                    });
+                    session.setDaemon(true);
+                    session.start();
+                }
+            }
+        }
+    }
+
+    //answers one connection until QUIT or end of input
+    public void serve(InputStream in, OutputStream out, String network) throws IOException{
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+        Future<String> end = CompletableFuture.completedFuture(null);
+
+        //writes the responses in request order, flushing whenever it catches up with the reader
+        Thread responder = new Thread(() -> {
+            try {
+                while (true){
+                    Future<String> next = pending.take();
+                    if (next == end){
+                        break;
+                    }
+                    if (next instanceof FutureTask){
+                        ((FutureTask<String>) next).run();
+                    }
+                    writer.write(response(next));
+                    writer.newLine();
+                    if (pending.isEmpty()){
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+            } catch (IOException | InterruptedException e) {
+                System.err.println("failed to write response: " + e.getMessage());
+            }
+        });
+        responder.start();
+
+        String current = network;
+        InferenceSession[] session = new InferenceSession[1]; //what-if session of the connection, used by the writer only
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                line = line.trim();
+                if (line.isEmpty()){
+                    continue;
+                }
+                if (line.equals("QUIT")){
+                    break;
+                }
+
+                if (line.startsWith("NET ")){
+                    String file = line.substring(4).trim();
+                    String answer = network(file);
+                    if (answer.startsWith("OK")){
+                        current = file;
+                        pending.put(new FutureTask<>(() -> { //the evidence was observed on the previous network
+                            session[0] = null;
+                            return answer;
+                        }));
+                    } else {
+                        pending.put(CompletableFuture.completedFuture(answer));
+                    }
+                } else if (line.equals("STATS")){
+                    pending.put(new FutureTask<>(this::stats)); //run by the writer, after the earlier queries
+                } else if (current == null){
+                    pending.put(CompletableFuture.completedFuture("ERROR no network, send NET <file> first"));
+                } else if (line.startsWith("OBSERVE ") || line.startsWith("RETRACT ") || line.startsWith("ASK ")){
+                    String request = line;
+                    BayesianNetwork bn = networks.get(current);
+                    pending.put(new FutureTask<>(() -> whatIf(request, bn, session))); //in order, sessions aren't thread safe
+                } else {
+                    pending.put(submit(current, line));
+                }
+            }
+            pending.put(end);
+            responder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //loads the network once, later calls reuse the resident one
+    private String network(String file){
+        BayesianNetwork bn = networks.computeIfAbsent(file, NetworkFile::load);
+        if (bn.variables.isEmpty()){
+            networks.remove(file);
+            return "ERROR could not load " + file;
+        }
+        return "OK " + bn.variables.size();
+    }
+
+    private Future<String> submit(String file, String queryLine){
+        long start = System.nanoTime(); //latency includes the time spent waiting for a worker
+        String query = key(queryLine);
+        String key = query == null ? null : file + "\n" + query;
+        BayesianNetwork bn = networks.get(file);
+
+        return workers.submit(() -> {
+            String result = key == null ? null : cached(key);
+            if (result == null){
+                result = QueryRunner.answer(queryLine, bn);
+                if (key != null){
+                    cache(key, result);
+                }
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            return result + " " + micros + "us";
+        });
+    }
+
+    //answers OBSERVE, RETRACT and ASK on the session of a connection, the session is made on the first use
+    private static String whatIf(String request, BayesianNetwork bn, InferenceSession[] session){
+        long start = System.nanoTime();
+        int space = request.indexOf(' ');
+        String command = request.substring(0, space);
+        String argument = request.substring(space + 1).trim();
+
+        if (command.equals("RETRACT")){
+            if (session[0] != null){
+                session[0].retract(argument);
+            }
+            return "OK " + (session[0] == null ? 0 : session[0].getEvidence().size());
+        }
+
+        try {
+            int algoNum = SESSION_ALGORITHM;
+            int comma = argument.lastIndexOf(',');
+            if (command.equals("ASK") && comma >= 0){
+                algoNum = Integer.parseInt(argument.substring(comma + 1).trim());
+                argument = argument.substring(0, comma).trim();
+            }
+            int equals = argument.indexOf('=');
+            if (equals <= 0){
+                throw new IllegalArgumentException("expected <variable>=<value>, got '" + argument + "'");
+            }
+            String var = argument.substring(0, equals).trim();
+            String value = argument.substring(equals + 1).trim();
+
+            if (session[0] == null){
+                session[0] = new InferenceSession(bn, algoNum, bn.factorCache);
+            } else if (command.equals("ASK") && session[0].getAlgoNum() != algoNum){ //same evidence, other algorithm
+                InferenceSession other = new InferenceSession(bn, algoNum, bn.factorCache);
+                for (Map.Entry<String, String> e : session[0].getEvidence().entrySet()){
+                    other.observe(e.getKey(), e.getValue());
+                }
+                session[0] = other;
+            }
+
+            if (command.equals("OBSERVE")){
+                session[0].observe(var, value);
+                return "OK " + session[0].getEvidence().size();
+            }
+            InferenceSession.Result res = session[0].query(var, value);
+            long micros = (System.nanoTime() - start) / 1000;
+            return String.format("%.5f,%d,%d", res.probability, res.addCount, res.mulCount) + " " + micros + "us reused=" + res.reusedFactors;
+        } catch (Exception e) {
+            if (command.equals("OBSERVE")){
+                return "ERROR " + e.getMessage();
+            }
+            System.out.println("skipping invalid query: " + request + " – " + e.getMessage());
+            long micros = (System.nanoTime() - start) / 1000;
+            return QueryRunner.ERROR_LINE + " " + micros + "us";
+        }
+    }
+
+    private static String response(Future<String> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return QueryRunner.ERROR_LINE;
+        } catch (ExecutionException e) {
+            return QueryRunner.ERROR_LINE;
+        }
+    }
+
+    //cache key of a query line from what Query parsed, so "P(B=T | J=T),2" and "P(B=T|J=T),2" share an entry but
+    //"P(B=T|J=T) ,2" (algorithm 1, the , must follow the parenthesis) doesn't. the evidence is sorted by name, except
+    //for the sampling algorithms whose samples follow the order of the evidence. null if the line doesn't parse
+    private static String key(String queryLine){
+        Query q;
+        try {
+            q = new Query(queryLine);
+        } catch (Exception e) {
+            return null; //answered (and reported) without caching
+        }
+        boolean sampling = q.algoNum == SamplingInference.LIKELIHOOD_WEIGHTING || q.algoNum == SamplingInference.GIBBS;
+        Map<String, String> evidence = sampling ? q.evidence : new TreeMap<>(q.evidence);
+        return q.algoNum + "|" + q.conditional + "|" + q.queryVar + "=" + q.queryValue + "|" + evidence;
+    }
+
+    private synchronized String cached(String key){
+        String result = results.get(key);
+        if (result == null){
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    private synchronized void cache(String key, String result){
+        results.put(key, result);
+    }
+
+    private synchronized String stats(){
+        return "networks=" + networks.size() + " cached=" + results.size() + " hits=" + hits + " misses=" + misses;
+    }
+}
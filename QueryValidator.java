@@ -10,7 +10,7 @@ public class QueryValidator{
                 throw new IllegalArgumentException("query variable '" + q.queryVar + "' does not exist in the network.");
             }
 
-            if(!queryVar.outcomes.contains(q.queryValue)) {
+            if(queryVar.getOutcomeIndex(q.queryValue) < 0) {
                 throw new IllegalArgumentException("value '" + q.queryValue + "' is not valid for query variable '" + q.queryVar + "'");
             }
         }
@@ -25,7 +25,7 @@ public class QueryValidator{
                 throw new IllegalArgumentException("evidence variable '" + varName + "' does not exist in the network.");
             }
 
-            if(!v.outcomes.contains(value)){
+            if(v.getOutcomeIndex(value) < 0){
                 throw new IllegalArgumentException("value '" + value + "' is not valid for variable '" + varName + "'");
             }
         }
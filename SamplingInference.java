@@ -0,0 +1,429 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+//approximate inference by sampling, for networks whose treewidth is too large for elimination
+//algorithm 5 - likelihood weighting: ancestors of query and evidence are sampled top down, evidence is not sampled
+//              but weights the sample by its probability
+//algorithm 6 - gibbs sampling: every non evidence variable is resampled in turn from its markov blanket
+//
+//the samples are split into a fixed # of chunks, each with its own random generator derived from the seed, and the
+//chunks run in parallel. with a sample budget the answer only depends on the seed, not on the # of threads
+//options: -Dsampling.samples=N (default 100000), -Dsampling.millis=T (time budget, 0 = none), -Dsampling.seed=S,
+//         -Dsampling.threads=P (default # cores), -Dsampling.chunks=C (default 16, also the # of gibbs chains)
+public class SamplingInference{
+
+    public static final int LIKELIHOOD_WEIGHTING = 5;
+    public static final int GIBBS = 6;
+
+    private static final long SAMPLES = Long.getLong("sampling.samples", 100000);
+    private static final long MILLIS = Long.getLong("sampling.millis", 0);
+    private static final long SEED = Long.getLong("sampling.seed", 1);
+    private static final int THREADS = Integer.getInteger("sampling.threads", Runtime.getRuntime().availableProcessors());
+    private static final int CHUNKS = Math.max(2, Integer.getInteger("sampling.chunks", 16));
+    private static final double Z95 = 1.959963984540054; //two sided 95% normal quantile
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS);
+
+    public static class Result{
+        public double probability;
+        public int addCount;
+        public int mulCount;
+        public long samples; //samples taken (after burn in for gibbs)
+        public double halfWidth; //of the 95% confidence interval, probability +- halfWidth
+        public double effectiveSamples; //likelihood weighting: Kish effective sample size (sum w)^2 / sum w^2
+
+        public Result(double probability, int addCount, int mulCount){ //constructor
+            this.probability = probability;
+            this.addCount = addCount;
+            this.mulCount = mulCount;
+        }
+    }
+
+    //what one chunk found, merged in chunk order so the sums don't depend on scheduling
+    private static class Tally{
+        double weight; //likelihood weighting: sum of w, sum of w * [query matches], sum of w^2, sum of w^2 * [query matches]
+        double queryWeight;
+        double squaredWeight;
+        double squaredQueryWeight;
+        long scale; //binary exponent of the sums: weight * 2^scale is the sum of w, squaredWeight * 2^(2 scale) the sum of w^2
+        boolean weighted; //a sample with weight > 0 was added, scale is set
+        long samples;
+        long hits; //gibbs: samples where the query matches
+        long adds;
+        long muls;
+
+        //adds the weight mantissa * 2^exponent of one sample, the sums follow the largest weight so they don't
+        //underflow when the evidence is unlikely (plain sums when no weight needs an exponent)
+        void addWeight(double mantissa, long exponent, boolean hit){
+            if (mantissa == 0.0){
+                return;
+            }
+            if (!weighted){
+                scale = exponent;
+                weighted = true;
+            } else if (exponent > scale){
+                rescale(exponent);
+            }
+            double w = scalb(mantissa, exponent - scale);
+            weight += w;
+            squaredWeight += w * w;
+            if (hit){
+                queryWeight += w;
+                squaredQueryWeight += w * w;
+            }
+        }
+
+        //adds the sums of other, a chunk after this one
+        void merge(Tally other){
+            if (other.weighted){
+                if (!weighted){
+                    scale = other.scale;
+                    weighted = true;
+                } else if (other.scale > scale){
+                    rescale(other.scale);
+                }
+                long shift = other.scale - scale;
+                weight += scalb(other.weight, shift);
+                queryWeight += scalb(other.queryWeight, shift);
+                squaredWeight += scalb(other.squaredWeight, 2 * shift);
+                squaredQueryWeight += scalb(other.squaredQueryWeight, 2 * shift);
+            }
+            samples += other.samples;
+            hits += other.hits;
+            adds += other.adds;
+            muls += other.muls;
+        }
+
+        private void rescale(long newScale){
+            long shift = scale - newScale;
+            weight = scalb(weight, shift);
+            queryWeight = scalb(queryWeight, shift);
+            squaredWeight = scalb(squaredWeight, 2 * shift);
+            squaredQueryWeight = scalb(squaredQueryWeight, 2 * shift);
+            scale = newScale;
+        }
+
+        private static double scalb(double value, long shift){
+            return Math.scalb(value, (int) Math.max(-4096, Math.min(4096, shift)));
+        }
+    }
+
+    public static Result run(Query q, BayesianNetwork bn){
+        Variable queryVar = bn.getVariableByName(q.queryVar);
+        if (q.evidence.containsKey(q.queryVar)){ //validated to be the same value
+            return new Result(1.0, 0, 0);
+        }
+
+        Model model = new Model(q, bn);
+        long deadline = MILLIS > 0 ? System.nanoTime() + MILLIS * 1000000 : Long.MAX_VALUE;
+
+        QueryMetrics metrics = QueryMetrics.current(); //the chunks' allocations count for the query
+        List<Callable<Tally>> chunks = new ArrayList<>();
+        for (int c = 0; c < CHUNKS; c++){
+            long quota = SAMPLES / CHUNKS + (c < SAMPLES % CHUNKS ? 1 : 0);
+            SplittableRandom random = new SplittableRandom(SEED * 0x9E3779B97F4A7C15L + c); //one generator per chunk
+            boolean gibbs = q.algoNum == GIBBS;
+            chunks.add(() -> {
+                QueryMetrics previous = QueryMetrics.attach(metrics);
+                try {
+                    return gibbs ? model.gibbs(random, quota, chunkDeadline(deadline)) : model.likelihoodWeighting(random, quota, chunkDeadline(deadline));
+                } finally {
+                    QueryMetrics.attach(previous);
+                }
+            });
+        }
+
+        List<Tally> tallies = new ArrayList<>();
+        try {
+            for (Future<Tally> f : POOL.invokeAll(chunks)){
+                tallies.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("sampling interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("sampling failed: " + e.getCause(), e.getCause());
+        }
+
+        long adds = 0;
+        long muls = 0;
+        long samples = 0;
+        for (Tally t : tallies){
+            adds += t.adds;
+            muls += t.muls;
+            samples += t.samples;
+        }
+
+        Result result = new Result(0.0, saturate(adds), saturate(muls));
+        result.samples = samples;
+
+        if (q.algoNum == GIBBS){
+            //each chain is one estimate, the interval comes from the spread between the chains (batch means)
+            long hits = 0;
+            for (Tally t : tallies){
+                hits += t.hits;
+            }
+            if (samples == 0){
+                throw new IllegalStateException("no samples were taken, raise sampling.samples or sampling.millis");
+            }
+            double p = (double) hits / samples;
+            double spread = 0.0;
+            int chains = 0;
+            for (Tally t : tallies){
+                if (t.samples > 0){
+                    double d = (double) t.hits / t.samples - p;
+                    spread += d * d;
+                    chains++;
+                }
+            }
+            result.probability = p;
+            result.halfWidth = chains > 1 ? Z95 * Math.sqrt(spread / (chains - 1) / chains) : Double.NaN;
+        } else {
+            Tally total = new Tally();
+            for (Tally t : tallies){
+                total.merge(t);
+            }
+            double w = total.weight, wq = total.queryWeight, w2 = total.squaredWeight, w2q = total.squaredQueryWeight;
+            if (w == 0.0){
+                throw new IllegalStateException("every sample has weight 0, the evidence is unlikely or impossible");
+            }
+            double p = wq / w; //the scale of the sums cancels out here and below
+            //ratio estimator: var(p) ~ sum w_i^2 (I_i - p)^2 / (sum w_i)^2
+            double variance = ((1 - 2 * p) * w2q + p * p * w2) / (w * w);
+            if (Double.isNaN(variance)){
+                variance = 0.0;
+            }
+            result.probability = p;
+            result.effectiveSamples = w * w / w2;
+            result.halfWidth = Math.max(Z95 * Math.sqrt(Math.max(0.0, variance)), wilsonHalfWidth(p, result.effectiveSamples));
+        }
+        return result;
+    }
+
+    //with many evidence variables a few samples carry most of the weight and the ratio estimator's variance comes out
+    //near 0 around a wrong p, so the interval is at least the Wilson score interval at the effective sample size,
+    //taken as wide on both sides of p
+    private static double wilsonHalfWidth(double p, double n){
+        double z2 = Z95 * Z95;
+        double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        double radius = Z95 / (1 + z2 / n) * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n));
+        return Math.max(p - (center - radius), center + radius - p);
+    }
+
+    //with a time budget every chunk gets its share of it from when it starts (the chunks outnumber the threads),
+    //so all the gibbs chains take samples, and none runs past the budget
+    private static long chunkDeadline(long deadline){
+        if (deadline == Long.MAX_VALUE){
+            return deadline;
+        }
+        long share = MILLIS * 1000000 * Math.min(THREADS, CHUNKS) / CHUNKS;
+        long start = System.nanoTime();
+        return deadline - start < share ? deadline : start + share;
+    }
+
+    private static int saturate(long count){
+        return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    //the part of the network that matters for the query: ancestors of query and evidence, in topological order
+    private static class Model{
+        final BayesianNetwork bn;
+        final int[] order; //variable ids, parents first
+        final int[] observed; //outcome index by variable id, -1 if not evidence
+        final int[][] children; //relevant children by variable id (the others sum out to 1)
+        final int queryId;
+        final int queryIndex;
+
+        Model(Query q, BayesianNetwork bn){ //constructor
+            this.bn = bn;
+            int n = bn.variables.size();
+            this.queryId = bn.getVariableId(q.queryVar);
+            this.queryIndex = bn.variables.get(queryId).getOutcomeIndex(q.queryValue);
+
+            observed = new int[n];
+            Arrays.fill(observed, -1);
+            for (Map.Entry<String, String> e : q.evidence.entrySet()){
+                Variable var = bn.getVariableByName(e.getKey());
+                observed[var.id] = var.getOutcomeIndex(e.getValue());
+            }
+
+            boolean[] relevant = new boolean[n];
+            List<Integer> ids = new ArrayList<>();
+            addAncestors(queryId, relevant, ids);
+            for (String ev : q.evidence.keySet()){
+                addAncestors(bn.getVariableId(ev), relevant, ids);
+            }
+            order = ids.stream().mapToInt(Integer::intValue).toArray();
+
+            children = new int[n][];
+            for (int id : order){
+                children[id] = Arrays.stream(bn.variables.get(id).childIds).filter(c -> relevant[c]).toArray();
+            }
+        }
+
+        //depth first over the parents with an explicit stack (deep networks overflow the call stack), a variable is
+        //added after all its parents: ~id on the stack marks that its parents are done
+        private void addAncestors(int start, boolean[] relevant, List<Integer> ids){
+            Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()){
+                int id = stack.pop();
+                if (id < 0){
+                    ids.add(~id);
+                    continue;
+                }
+                if (relevant[id]){
+                    continue;
+                }
+                relevant[id] = true;
+                stack.push(~id);
+                int[] parents = bn.variables.get(id).parentIds;
+                for (int k = parents.length - 1; k >= 0; k--){ //first parent on top, visited first
+                    if (!relevant[parents[k]]){
+                        stack.push(parents[k]);
+                    }
+                }
+            }
+        }
+
+        Tally likelihoodWeighting(SplittableRandom random, long quota, long deadline){
+            Tally t = new Tally();
+            int[] value = new int[bn.variables.size()];
+
+            for (long s = 0; s < quota && (s % 256 != 0 || System.nanoTime() < deadline); s++){
+                double weight = 1.0; //weight * 2^exponent, the exponent takes over before the product gets subnormal
+                long exponent = 0;
+                boolean firstWeight = true;
+                for (int id : order){
+                    Variable var = bn.variables.get(id);
+                    if (observed[id] >= 0){
+                        value[id] = observed[id];
+                        weight *= var.cpt.get(rowOf(var, value) + observed[id]);
+                        if (weight != 0.0 && Math.getExponent(weight) < -512){
+                            int e = Math.getExponent(weight);
+                            weight = Math.scalb(weight, -e);
+                            exponent += e;
+                        }
+                        if (!firstWeight){
+                            t.muls++;
+                        }
+                        firstWeight = false;
+                    } else {
+                        value[id] = sample(var, rowOf(var, value), random);
+                    }
+                }
+
+                if (t.samples > 0){
+                    t.adds++;
+                }
+                t.samples++;
+                t.addWeight(weight, exponent, value[queryId] == queryIndex);
+            }
+            return t;
+        }
+
+        Tally gibbs(SplittableRandom random, long quota, long deadline){
+            Tally t = new Tally();
+            int[] value = new int[bn.variables.size()];
+
+            //start from a forward sample with the evidence clamped
+            for (int id : order){
+                Variable var = bn.variables.get(id);
+                value[id] = observed[id] >= 0 ? observed[id] : sample(var, rowOf(var, value), random);
+            }
+
+            //burn in: a tenth of the samples, and with a time budget at most a tenth of the time left
+            long burnIn = quota / 10;
+            long now = System.nanoTime();
+            long burnInDeadline = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : now + Math.max(0, deadline - now) / 10;
+            boolean burning = burnIn > 0;
+            double[] weights = new double[0];
+            for (long s = 0; burning || t.samples < quota; s++){
+                if (s % 64 == 0){
+                    now = System.nanoTime();
+                    if (now >= deadline){
+                        break;
+                    }
+                    if (now >= burnInDeadline){
+                        burning = false;
+                    }
+                }
+                for (int id : order){
+                    if (observed[id] >= 0){
+                        continue;
+                    }
+                    Variable var = bn.variables.get(id);
+                    int k = var.outcomes.size();
+                    if (weights.length < k){
+                        weights = new double[k];
+                    }
+
+                    //P(x | markov blanket) ~ P(x | parents) * product of P(child | its parents)
+                    double total = 0.0;
+                    for (int x = 0; x < k; x++){
+                        value[id] = x;
+                        double w = var.cpt.get(rowOf(var, value) + x);
+                        for (int child : children[id]){
+                            Variable c = bn.variables.get(child);
+                            w *= c.cpt.get(rowOf(c, value) + value[child]);
+                            t.muls++;
+                        }
+                        weights[x] = w;
+                        total += w;
+                        if (x > 0){
+                            t.adds++;
+                        }
+                    }
+                    value[id] = pick(weights, k, total, random);
+                }
+
+                if (burning){
+                    burning = s + 1 < burnIn;
+                } else {
+                    t.samples++;
+                    if (value[queryId] == queryIndex){
+                        t.hits++;
+                    }
+                }
+            }
+            return t;
+        }
+
+        //index of the first CPT entry for the current values of var's parents
+        private static int rowOf(Variable var, int[] value){
+            int index = 0;
+            for (int i = 0; i < var.parentIds.length; i++){
+                index += value[var.parentIds[i]] * var.cptStrides[i];
+            }
+            return index;
+        }
+
+        private static int sample(Variable var, int row, SplittableRandom random){
+            int k = var.outcomes.size();
+            double u = random.nextDouble();
+            double cumulative = 0.0;
+            for (int x = 0; x < k - 1; x++){
+                cumulative += var.cpt.get(row + x);
+                if (u < cumulative){
+                    return x;
+                }
+            }
+            return k - 1;
+        }
+
+        private static int pick(double[] weights, int k, double total, SplittableRandom random){
+            if (total <= 0.0){ //state with probability 0, any value
+                return random.nextInt(k);
+            }
+            double u = random.nextDouble() * total;
+            double cumulative = 0.0;
+            for (int x = 0; x < k - 1; x++){
+                cumulative += weights[x];
+                if (u < cumulative){
+                    return x;
+                }
+            }
+            return k - 1;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+//double with a separate binary exponent, value = mantissa * 2^exponent
+//long products of small probabilities keep their precision instead of underflowing to 0
+//
+//the scaled numeric mode is chosen per run with -Dve.numeric=scaled (default: plain doubles, the exponent stays 0
+//and every operation is the plain double operation), it never changes the # of + and * operations reported
+public class ScaledDouble{
+
+    public static final boolean ENABLED = System.getProperty("ve.numeric", "plain").trim().equalsIgnoreCase("scaled");
+
+    public double mantissa; //1 <= |mantissa| < 2, or 0
+    public long exponent;
+
+    public ScaledDouble(double value){ //constructor
+        this.mantissa = value;
+        normalize();
+    }
+
+    //this *= factor * 2^scale
+    public void multiply(double factor, long scale){
+        mantissa *= factor;
+        exponent += scale;
+        normalize();
+    }
+
+    //this *= other
+    public void multiply(ScaledDouble other){
+        multiply(other.mantissa, other.exponent);
+    }
+
+    //this += other
+    public void add(ScaledDouble other){
+        if (other.mantissa == 0){
+            return;
+        }
+        if (mantissa == 0){
+            mantissa = other.mantissa;
+            exponent = other.exponent;
+            return;
+        }
+        long common = Math.max(exponent, other.exponent);
+        mantissa = scalb(mantissa, exponent - common) + scalb(other.mantissa, other.exponent - common);
+        exponent = common;
+        normalize();
+    }
+
+    //this / other as a plain double
+    public double divide(ScaledDouble other){
+        return scalb(mantissa / other.mantissa, exponent - other.exponent);
+    }
+
+    public double toDouble(){
+        return scalb(mantissa, exponent);
+    }
+
+    public boolean isZero(){
+        return mantissa == 0;
+    }
+
+    private void normalize(){
+        if (!ENABLED || mantissa == 0 || Double.isNaN(mantissa) || Double.isInfinite(mantissa)){
+            return;
+        }
+        int e = exponentOf(mantissa);
+        mantissa = Math.scalb(mantissa, -e);
+        exponent += e;
+    }
+
+    //binary exponent of a finite value other than 0, subnormals included: value * 2^-exponentOf(value) is in [1, 2)
+    static int exponentOf(double value){
+        int e = Math.getExponent(value);
+        return e < Double.MIN_EXPONENT ? Math.getExponent(value * 0x1p54) - 54 : e;
+    }
+
+    //d * 2^e for any long e, results beyond the double range become 0 or infinity
+    static double scalb(double d, long e){
+        return Math.scalb(d, (int) Math.max(-4096, Math.min(4096, e)));
+    }
+}
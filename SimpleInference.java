@@ -1,11 +1,24 @@
 import java.util.*;
 
+//exact inference by enumeration (algorithm 1)
+//the assignments are visited depth first without being stored, each CPT is multiplied in as soon as its variables
+//are assigned, a branch whose product is 0 is skipped, and the sum below a depth is memoized on the values it
+//depends on. the query variable is enumerated first, so the numerator and all denominator terms come from one pass
 public class SimpleInference{
 
+    //"course" (default): report the + and * of the full enumeration defined by the course, one product of all the
+    //network's CPTs per assignment of the free variables. "actual": report the operations really done (-Dsi.counting=actual)
+    private static final boolean COURSE_COUNTING = !System.getProperty("si.counting", "course").trim().equalsIgnoreCase("actual");
+    //the enumeration recurses once per relevant variable, deeper queries are rejected instead of overflowing the stack
+    private static final int MAX_DEPTH = Integer.getInteger("si.maxDepth", 2000);
+    //# context values a depth memoizes at most, the sum below a depth with a wider context is recomputed (-Dsi.memo=N)
+    private static final int MEMO_KEYS = Integer.getInteger("si.memo", 1 << 14);
+
     public static class Result{
         public double probability;
         public int addCount;// + operation count
         public int mulCount;// * operation count
+        public double[] posterior; //P(query var = k | evidence) for every outcome k
 
         public Result(double probability, int addCount, int mulCount){ //constructor
             this.probability = probability;
@@ -15,211 +28,361 @@ public class SimpleInference{
     }
 
     public static Result run(Query q, BayesianNetwork bn){
+        return runAll(q, bn)[bn.getVariableByName(q.queryVar).getOutcomeIndex(q.queryValue)];
+    }
 
-        //initial counters
-        int addCount = 0;
-        int mulCount = 0;
-
-
-        Map<String, String> baseAssignment = new LinkedHashMap<>(q.evidence); //assignment of known variables
-        baseAssignment.put(q.queryVar, q.queryValue); //query variable
-
-        //unassigned variables
-        List<String> freeVars = findFreeVariables(baseAssignment, bn);
-        List<Assignment> allAssignments = generateAllAssignments(freeVars, bn); //all possible combinations
-
-        Map<Assignment, ComputeResult> computedNumeratorTerms = new HashMap<>(); //keep track of computed terms
-
-        double numeratorSum = 0.0;
-        boolean firstNumeratorTerm = true; //check to track # additions
-
-        //calculating numerator
-        for (Assignment assign : allAssignments){
-            Map<String, String> fullAssign = new LinkedHashMap<>(baseAssignment);
-            fullAssign.putAll(assign.map); //create full assignment
+    //one result per outcome of the query variable from a single enumeration, each the same as run() with that value
+    //(null for the values ruled out by evidence on the query variable)
+    public static Result[] runAll(Query q, BayesianNetwork bn){
 
-            ComputeResult res = computeProbability(fullAssign, bn);
-            computedNumeratorTerms.put(assign, res); //insert computed term
+        long plan = QueryMetrics.start();
+        Enumeration enumeration = new Enumeration(q, bn);
+        QueryMetrics.stop("plan", plan);
 
-            //update counters
-            numeratorSum += res.probability;
-            mulCount += res.mulCount;
+        long enumerate = QueryMetrics.start();
+        ScaledDouble[] joint; //P(query var = k, evidence) for every outcome k
+        try {
+            joint = enumeration.joint();
+        } catch (StackOverflowError e) { //a thread with a smaller stack than MAX_DEPTH assumes
+            throw new IllegalStateException("enumeration over " + enumeration.order.length + " variables overflowed the stack, lower si.maxDepth or raise -Xss");
+        }
+        QueryMetrics.stop("enumerate", enumerate);
 
-            if (!firstNumeratorTerm){ //+ is not considered in first term
-                addCount++;
+        Variable queryVariable = bn.getVariableByName(q.queryVar);
+        Result[] results = new Result[joint.length];
+        double[] posterior = new double[joint.length];
+        String observed = q.evidence.get(q.queryVar);
+        for (int k = 0; k < joint.length; k++){
+            if (observed == null){
+                results[k] = resultFor(q, bn, enumeration, joint, k);
+                posterior[k] = results[k].probability;
+            } else if (observed.equals(queryVariable.outcomes.get(k))){
+                results[k] = resultFor(q, bn, enumeration, joint, k);
+                posterior[k] = 1.0;
             }
-            firstNumeratorTerm = false;
-
-            //System.out.println("[numerator] Term: " + assign.map + ", prob=" + res.probability + ", mul=" + res.mulCount);
         }
-        //System.out.println("numerator sum = " + numeratorSum);
-
-        //if the query variable is already in evidence, directly return the result.
-        if (q.evidence.containsKey(q.queryVar)){
-            //System.out.println("query variable already in evidence. No normalization needed.");
-            return new Result(numeratorSum, addCount, mulCount);
+        for (Result result : results){
+            if (result != null){
+                result.posterior = posterior;
+            }
         }
+        return results;
+    }
 
-        //denominator
+    private static Result resultFor(Query q, BayesianNetwork bn, Enumeration enumeration, ScaledDouble[] joint, int queryIndex){
         Variable queryVariable = bn.getVariableByName(q.queryVar);
+        ScaledDouble numerator = joint[queryIndex];
 
-        double denominatorExtraSum = 0.0;
-        boolean firstDenominatorNewTerm = true; //whether this is the first new term in denominator
-
-        for (String outcome : queryVariable.outcomes){
-            if (outcome.equals(q.queryValue)){
-                continue; //skip value that's already being calculated in the numerator
+        //if the query variable is already in evidence, directly return the result (no normalization, like the course engine)
+        if (q.evidence.containsKey(q.queryVar)){
+            Result result = new Result(numerator.toDouble(), enumeration.adds, enumeration.muls);
+            if (COURSE_COUNTING){
+                long terms = freeAssignments(q, bn);
+                result.addCount = saturate(terms - 1);
+                result.mulCount = saturate(times(terms, bn.variables.size() - 1));
             }
+            return result;
+        }
 
-            Map<String, String> evidencePlusOutcome = new LinkedHashMap<>(q.evidence);
-            evidencePlusOutcome.put(q.queryVar, outcome);
-
-            List<String> freeVarsDenominator = findFreeVariables(evidencePlusOutcome, bn); //finding unassigned variables
-            List<Assignment> assignmentsDenominator = generateAllAssignments(freeVarsDenominator, bn);
-
-            //calculating each new term in denominator
-            for (Assignment assign : assignmentsDenominator){
-                Map<String, String> fullAssign = new LinkedHashMap<>(evidencePlusOutcome);
-                fullAssign.putAll(assign.map); //creating full assignment
-
-                ComputeResult res = computeProbability(fullAssign, bn);
-
-                //update counters
-                denominatorExtraSum += res.probability;
-                mulCount += res.mulCount;
-
-                if (!firstDenominatorNewTerm){
-                    addCount++; //+ is not considered in first term
-                }
-                firstDenominatorNewTerm = false;
-
-                //System.out.println("[denominator - Extra] Term: " + assign.map + ", prob=" + res.probability + ", mul=" + res.mulCount);
+        //denominator, numerator plus the terms of the other outcomes
+        ScaledDouble extra = new ScaledDouble(0.0);
+        int extraAdds = 0;
+        boolean firstExtra = true;
+        for (int k = 0; k < joint.length; k++){
+            if (k == queryIndex){
+                continue;
+            }
+            extra.add(joint[k]);
+            if (!firstExtra){
+                extraAdds++;
             }
+            firstExtra = false;
         }
-
-        //add the numerator amount to the denominator amount
-        double denominator = numeratorSum + denominatorExtraSum;
-        if (denominatorExtraSum != 0.0){
-            addCount++; //this required one + operation.
+        ScaledDouble denominator = new ScaledDouble(0.0);
+        denominator.add(numerator);
+        denominator.add(extra);
+        if (denominator.isZero()){
+            throw new IllegalStateException("probability of the evidence is 0" + (ScaledDouble.ENABLED ? "" : " (or underflowed, try -Dve.numeric=scaled)"));
         }
 
-        //System.out.println("denominator = " + denominator);
-
-        double finalProb = numeratorSum / denominator; //final probability
-
-        //System.out.println("final Probability = " + finalProb);
-
-        return new Result(finalProb, addCount, mulCount);
+        Result result = new Result(numerator.divide(denominator), enumeration.adds + extraAdds + 1, enumeration.muls);
+        if (COURSE_COUNTING){
+            //numerator: T terms, denominator: (k-1)*T more terms, each term a product of all n CPTs
+            long terms = freeAssignments(q, bn);
+            long extraTerms = times(terms, queryVariable.outcomes.size() - 1);
+            long adds = plus(plus(terms - 1, Math.max(0, extraTerms - 1)), extra.isZero() ? 0 : 1);
+            result.addCount = saturate(adds);
+            result.mulCount = saturate(times(plus(terms, extraTerms), bn.variables.size() - 1));
+        }
+        return result;
     }
 
-    // returns a list of unassigned variables
-    private static List<String> findFreeVariables(Map<String, String> assignment, BayesianNetwork bn){
-        List<String> freeVars = new ArrayList<>();
+    //# assignments of the variables that are neither query nor evidence
+    private static long freeAssignments(Query q, BayesianNetwork bn){
+        long terms = 1;
         for (Variable var : bn.variables){
-            if (!assignment.containsKey(var.name)){
-                freeVars.add(var.name);
+            if (!var.name.equals(q.queryVar) && !q.evidence.containsKey(var.name)){
+                terms = times(terms, var.outcomes.size());
             }
         }
-        return freeVars;
+        return terms;
     }
 
-    //creates all combinations for assigning the free variables.
-    private static List<Assignment> generateAllAssignments(List<String> vars, BayesianNetwork bn){
-        List<Assignment> result = new ArrayList<>();
-        generateAllAssignmentsHelper(vars, 0, new LinkedHashMap<>(), bn, result);
-        return result;
+    private static int saturate(long count){
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, count));
     }
 
-    //recursive helper function - create all combinations
-    private static void generateAllAssignmentsHelper(List<String> vars, int index, Map<String, String> current, BayesianNetwork bn, List<Assignment> result){
-
-        if (index == vars.size()){ //stop after going through all variables
-            result.add(new Assignment(new LinkedHashMap<>(current)));
-            return;
-        }
-
-        String varName = vars.get(index); //next variable
-        Variable var = bn.getVariableByName(varName);
-
-        for (String outcome : var.outcomes){ //for every possible value of var
-            current.put(varName, outcome);
-            generateAllAssignmentsHelper(vars, index + 1, current, bn, result); //recursive call, to call the next variable
-            current.remove(varName); //removing a value to check for another value later
+    //a * b and a + b of counts (>= 0), Long.MAX_VALUE instead of wrapping around
+    private static long times(long a, long b){
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
         }
     }
 
-    private static class ComputeResult{
-        double probability;
-        int mulCount;
-
-        ComputeResult(double probability, int mulCount){ //constructor
-            this.probability = probability;
-            this.mulCount = mulCount;
+    private static long plus(long a, long b){
+        try {
+            return Math.addExact(a, b);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
         }
     }
 
+    //one depth first enumeration over the ancestors of the query and evidence (the other CPTs sum to 1)
+    private static class Enumeration{
+        final BayesianNetwork bn;
+        final int[] order; //variable id at each depth, query variable first, then parents before children
+        final int[] cardinality; //# values at each depth (1 for evidence)
+        final int[] first; //outcome index of the first value at each depth
+        final int[][] completed; //ids of the variables whose CPT is complete once the variable at this depth is assigned
+        final int[][] context; //depths assigned before this one whose values the sum below still depends on
+        final int[] keys; //# context values at each depth, 0 if more than MEMO_KEYS (not memoized)
+        final double[][] memo; //per depth: sum by context values (NaN until known), allocated on first use
+        final long[][] memoExponents; //binary exponents of the memoized sums, scaled numeric mode only
+        final int[] value; //current outcome index by variable id
+        long exponent; //binary exponent of the value sum() or term() just returned, always 0 in plain numeric mode
+        int adds = 0;
+        int muls = 0;
+
+        Enumeration(Query q, BayesianNetwork bn){ //constructor
+            this.bn = bn;
+            this.value = new int[bn.variables.size()];
+
+            //query variable first, then the ancestors of query and evidence in topological order
+            List<Integer> ids = new ArrayList<>();
+            boolean[] visited = new boolean[bn.variables.size()];
+            int queryId = bn.getVariableId(q.queryVar);
+            visited[queryId] = true;
+            ids.add(queryId);
+            for (int parent : bn.variables.get(queryId).parentIds){
+                addAncestors(parent, visited, ids);
+            }
+            for (String ev : q.evidence.keySet()){
+                addAncestors(bn.getVariableId(ev), visited, ids);
+            }
 
-    //calculates the overall probability of full assignment
-    private static ComputeResult computeProbability(Map<String, String> assignment, BayesianNetwork bn){
-
-        double result = 1.0;
-        int localMulCount = 0;
-        boolean first = true; //flag to know when to start counting *
-
-        //loop over all variables
-        for (Variable var : bn.variables){
-
-            String value = assignment.get(var.name);
-            if (value == null){ //if there is no value for var we will skip him
-                continue;
+            int m = ids.size();
+            if (m > MAX_DEPTH){
+                throw new IllegalStateException("enumeration would nest " + m + " variables deep, more than si.maxDepth=" + MAX_DEPTH);
+            }
+            order = new int[m];
+            cardinality = new int[m];
+            first = new int[m];
+            int[] depthOf = new int[bn.variables.size()];
+            for (int d = 0; d < m; d++){
+                Variable var = bn.variables.get(ids.get(d));
+                order[d] = ids.get(d);
+                depthOf[order[d]] = d;
+                String observed = q.evidence.get(var.name);
+                cardinality[d] = observed == null ? var.outcomes.size() : 1;
+                first[d] = observed == null ? 0 : var.getOutcomeIndex(observed);
             }
-            double prob = getProbability(var, value, assignment, bn);
-            //System.out.println("P(" + var.name + "=" + value + ") = " + prob);
 
-            result *= prob;
+            //a CPT is multiplied in at the depth of its last assigned variable
+            List<List<Integer>> completedAt = new ArrayList<>();
+            for (int d = 0; d < m; d++){
+                completedAt.add(new ArrayList<>());
+            }
+            int[] lastUse = new int[m]; //deepest depth whose CPTs read the variable at this depth
+            for (int d = 0; d < m; d++){
+                Variable var = bn.variables.get(order[d]);
+                int done = d;
+                for (int parent : var.parentIds){
+                    done = Math.max(done, depthOf[parent]);
+                }
+                completedAt.get(done).add(order[d]);
+                lastUse[d] = Math.max(lastUse[d], done);
+                for (int parent : var.parentIds){
+                    lastUse[depthOf[parent]] = Math.max(lastUse[depthOf[parent]], done);
+                }
+            }
 
-            if (!first){ //counting * operation (only if it is not the first operation)
-                localMulCount++;
+            completed = new int[m][];
+            context = new int[m][];
+            keys = new int[m];
+            memo = new double[m][];
+            memoExponents = new long[m][];
+            for (int d = 0; d < m; d++){
+                completed[d] = completedAt.get(d).stream().mapToInt(Integer::intValue).toArray();
+
+                List<Integer> depends = new ArrayList<>();
+                long count = 1;
+                for (int p = 0; p < d; p++){
+                    if (lastUse[p] >= d && cardinality[p] > 1){ //evidence never changes, it is not part of the key
+                        depends.add(p);
+                        count = Math.min(count * cardinality[p], (long) MEMO_KEYS + 1);
+                    }
+                }
+                context[d] = depends.stream().mapToInt(Integer::intValue).toArray();
+                keys[d] = count > MEMO_KEYS ? 0 : (int) count;
             }
-            first = false;
         }
 
-        //System.out.println("product = " + result + ", mulCount in Term = " + localMulCount);
-        return new ComputeResult(result, localMulCount);
-    }
+        //parents before the variable itself, depth first with an explicit stack (deep networks overflow the call
+        //stack): ~id on the stack marks that the parents of id are done
+        private void addAncestors(int start, boolean[] visited, List<Integer> ids){
+            Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()){
+                int id = stack.pop();
+                if (id < 0){
+                    ids.add(~id);
+                    continue;
+                }
+                if (visited[id]){
+                    continue;
+                }
+                visited[id] = true;
+                stack.push(~id);
+                int[] parents = bn.variables.get(id).parentIds;
+                for (int k = parents.length - 1; k >= 0; k--){ //first parent on top, visited first
+                    if (!visited[parents[k]]){
+                        stack.push(parents[k]);
+                    }
+                }
+            }
+        }
 
-    //returns the probability value from the variable's CPT table.
-    private static double getProbability(Variable var, String value, Map<String, String> assignment, BayesianNetwork bn){
-        int index = 0;
-        int base = 1;
+        //P(query var = k, evidence) for every outcome k of the query variable (0 for the values excluded by evidence)
+        ScaledDouble[] joint(){
+            Variable queryVar = bn.variables.get(order[0]);
+            ScaledDouble[] joint = new ScaledDouble[queryVar.outcomes.size()];
+            for (int k = 0; k < joint.length; k++){
+                joint[k] = new ScaledDouble(0.0);
+            }
+            for (int k = 0; k < cardinality[0]; k++){
+                value[order[0]] = first[0] + k;
+                ScaledDouble term = new ScaledDouble(term(0));
+                term.exponent += exponent;
+                joint[first[0] + k] = term;
+            }
+            return joint;
+        }
 
-        //loop over all parents (last to first)
-        for (int i = var.parents.size() - 1; i >= 0; i--){
-            String parentName = var.parents.get(i); //parent name
-            Variable parentVar = bn.getVariableByName(parentName); //parent variable
-            String val = assignment.get(parentName); //parent's value
-            int pos = parentVar.outcomes.indexOf(val); //position of the parent's value in its outcomes list
+        //sum over the values of the variables from this depth on, of the product of the CPTs completed there
+        //values are passed as a mantissa with its exponent in the exponent field, so nothing is allocated per assignment
+        private double sum(int d){
+            if (d == order.length){
+                exponent = 0;
+                return 1.0;
+            }
 
+            int key = 0;
+            if (keys[d] > 0){
+                for (int p : context[d]){
+                    key = key * cardinality[p] + (value[order[p]] - first[p]);
+                }
+                if (memo[d] == null){
+                    memo[d] = new double[keys[d]];
+                    Arrays.fill(memo[d], Double.NaN);
+                    memoExponents[d] = ScaledDouble.ENABLED ? new long[keys[d]] : null;
+                }
+                if (!Double.isNaN(memo[d][key])){
+                    exponent = ScaledDouble.ENABLED ? memoExponents[d][key] : 0;
+                    return memo[d][key];
+                }
+            }
 
-            int addition = pos * base;
-            index = index + addition;
-            int parentOutcomeCount = parentVar.outcomes.size(); //# possible parent's values
-            base = base * parentOutcomeCount; //update base for the next parent
+            double total = 0.0;
+            long totalExponent = 0;
+            boolean firstTerm = true;
+            for (int k = 0; k < cardinality[d]; k++){
+                value[order[d]] = first[d] + k;
+                double term = term(d);
+                if (term == 0.0){ //pruned, adds nothing
+                    continue;
+                }
+                if (total == 0.0){
+                    total = term;
+                    totalExponent = exponent;
+                } else if (ScaledDouble.ENABLED){
+                    long common = Math.max(totalExponent, exponent);
+                    total = scaled(ScaledDouble.scalb(total, totalExponent - common) + ScaledDouble.scalb(term, exponent - common), common);
+                    totalExponent = exponent;
+                } else {
+                    total += term;
+                }
+                if (!firstTerm){
+                    adds++;
+                }
+                firstTerm = false;
+            }
 
+            if (keys[d] > 0){
+                memo[d][key] = total;
+                if (ScaledDouble.ENABLED){
+                    memoExponents[d][key] = totalExponent;
+                }
+            }
+            exponent = totalExponent;
+            return total;
         }
 
-        int valIndex = var.outcomes.indexOf(value);
-        index = index * var.outcomes.size() + valIndex;
-
-        return var.cpt[index];
-    }
+        //product of the CPTs completed at depth d times the sum below, for the current value at d
+        private double term(int d){
+            double product = 1.0;
+            long productExponent = 0;
+            boolean firstFactor = true;
+            for (int id : completed[d]){
+                product = scaled(product * probability(bn.variables.get(id)), productExponent);
+                productExponent = exponent;
+                if (!firstFactor){
+                    muls++;
+                }
+                firstFactor = false;
+                if (product == 0.0){
+                    exponent = 0;
+                    return 0.0; //prune the branch
+                }
+            }
 
-    private static class Assignment{
-        Map<String, String> map;
+            double rest = sum(d + 1);
+            if (firstFactor || rest == 0.0){
+                return rest; //nothing to multiply at this depth, or nothing below
+            }
+            muls++;
+            return scaled(product * rest, productExponent + exponent);
+        }
 
-        Assignment(Map<String, String> map){ //constructor
-            this.map = map;
+        //mantissa * 2^e with the mantissa brought into [1, 2) in scaled numeric mode, the exponent goes to the field
+        private double scaled(double mantissa, long e){
+            exponent = e;
+            if (!ScaledDouble.ENABLED || mantissa == 0.0 || Double.isNaN(mantissa) || Double.isInfinite(mantissa)){
+                return mantissa;
+            }
+            int shift = ScaledDouble.exponentOf(mantissa);
+            exponent += shift;
+            return Math.scalb(mantissa, -shift);
         }
 
+        //CPT entry of var for the current values of var and its parents
+        private double probability(Variable var){
+            int index = value[var.id];
+            for (int i = 0; i < var.parentIds.length; i++){
+                index += value[var.parentIds[i]] * var.cptStrides[i];
+            }
+            return var.cpt.get(index);
+        }
     }
 }
@@ -1,10 +1,44 @@
-import java.util.ArrayList;
+import java.nio.DoubleBuffer;
+import java.util.*;
 
 public class Variable{
     public String name; //var name
     public ArrayList<String> parents = new ArrayList<>();
     public ArrayList<String> outcomes = new ArrayList<>(); //possible values for var
-    public double[] cpt; //probability for each combination
+    public DoubleBuffer cpt; //probability for each combination (heap array from XML, memory mapped from a NetworkFile)
+
+    //lookup tables, filled by BayesianNetwork.compile()
+    public int id; //position in network
+    public int[] parentIds; //network id of each parent
+    public int[] childIds; //network id of each child
+    public int[] cptStrides; //stride of each parent in cpt, the variable itself has stride 1
+    private Map<String, Integer> outcomeIndex = Collections.emptyMap(); //outcome -> position in outcomes
+
+    void compile(int id, BayesianNetwork bn){
+        this.id = id;
+
+        Map<String, Integer> index = new HashMap<>();
+        for(int i = 0; i < outcomes.size(); i++){
+            index.put(outcomes.get(i), i);
+        }
+        this.outcomeIndex = Collections.unmodifiableMap(index);
+
+        //loop from last parent to first, same order as the cpt
+        parentIds = new int[parents.size()];
+        cptStrides = new int[parents.size()];
+        int base = outcomes.size();
+        for(int i = parents.size() - 1; i >= 0; i--){
+            parentIds[i] = bn.getVariableId(parents.get(i));
+            cptStrides[i] = base;
+            base *= bn.variables.get(parentIds[i]).outcomes.size();
+        }
+    }
+
+    //position of outcome in outcomes, -1 if it is not a possible value
+    public int getOutcomeIndex(String outcome){
+        Integer index = outcomeIndex.get(outcome);
+        return index == null ? -1 : index;
+    }
 
 
 //    public void printCPT(){
@@ -24,4 +58,3 @@ public class Variable{
 
 
 }
-
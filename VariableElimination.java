@@ -1,12 +1,48 @@
 import java.util.*;
+import java.util.concurrent.*;
 
 public class VariableElimination{
 
+    //remove ancestors that are d-separated from the query before creating factors (-Dve.prune=true)
+    //off by default, pruning keeps the probabilities but changes the reported operation counts
+    private static final boolean PRUNE = Boolean.getBoolean("ve.prune");
+
+    //largest factor (# entries) a query may build, -Dve.max.factor.bytes=N (default: a quarter of the heap)
+    //a plan that goes over it is replanned, then split by conditioning on a variable, and the query fails only
+    //when that doesn't help, so one unlucky query can't take the whole batch down with an OutOfMemoryError
+    static final long MAX_FACTOR_SIZE = Math.min(Integer.MAX_VALUE - 8, Long.getLong("ve.max.factor.bytes", Runtime.getRuntime().maxMemory() / 4) / 8);
+
+    //joins and sum outs of at least this many result rows are split into slices computed in parallel, each slice
+    //fills its own rows, so the table and the counts are the same as one sequential loop
+    //-Dve.parallel.rows=N (default 65536, 0 = never), -Dve.threads=P (default # cores)
+    private static final int PARALLEL_ROWS = Integer.getInteger("ve.parallel.rows", 1 << 16);
+    static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("ve.threads", Runtime.getRuntime().availableProcessors()));
+
+    //joins and sum outs whose rows come in contiguous runs of at least this many rows go through the factor kernel
+    //(-Dve.kernel=auto|scalar|vector, see FactorKernel), shorter runs keep the row by row loops (-Dve.kernel.run=N)
+    private static final int KERNEL_RUN = Math.max(1, Integer.getInteger("ve.kernel.run", 8));
+
+    //thrown instead of allocating a factor over the budget
+    public static class FactorTooLargeException extends IllegalStateException{
+        private static final long serialVersionUID = 1L;
+
+        public final long size;
+
+        public FactorTooLargeException(String message, long size){
+            super(message);
+            this.size = size;
+        }
+    }
+
     //class to store the result of the query
     public static class Result {
         public double probability;
         public int addCount;
         public int mulCount;
+        public int prunedCount; //# ancestors removed by the Bayes-ball pass (0 when pruning is off)
+        public long peakFactorSize; //# entries of the largest factor of the plan
+        public int conditionedCount; //# variables conditioned on to stay within MAX_FACTOR_SIZE
+        public double[] posterior; //P(query var = k | evidence) for every outcome k, null for a joint query
 
         public Result(double probability, int addCount, int mulCount){
             this.probability = probability;
@@ -16,14 +52,143 @@ public class VariableElimination{
     }
 
     public static Result run(Query q, BayesianNetwork bn){
+        return run(q, bn, bn.factorCache);
+    }
+
+    //same, with the factors reused from (and stored in) the given cache
+    public static Result run(Query q, BayesianNetwork bn, FactorCache cache){
 
         //System.out.println("starting Variable Elimination for query: " + q.originalQuery);
 
         int[] addCounter = new int[1]; // additions counter
         int[] mulCounter = new int[1]; // multiplications counter
 
+        Joint joint = solve(q, bn, cache, addCounter, mulCounter);
+        int queryValueIndex = bn.getVariableByName(q.queryVar).getOutcomeIndex(q.queryValue);
+
+        double finalProbability;
+
+        if(q.conditional){ //conditions for normalization
+            if(joint.isZero()){ //the table has the same scale in every row, only a true 0 (or a plain double underflow) ends here
+                throw new IllegalStateException("probability of the evidence is 0" + (ScaledDouble.ENABLED ? "" : " (or underflowed, try -Dve.numeric=scaled)"));
+            }
+            //System.out.println("normalizing result: numerator=" + numerator + ", denominator=" + denominator);
+            addCounter[0]++; //1 + operation is required for normalization
+            finalProbability = joint.probability(queryValueIndex);
+        }else{ //not conditional
+            finalProbability = joint.scaledValue(queryValueIndex).toDouble();
+        }
+
+        Result result = new Result(finalProbability, addCounter[0], mulCounter[0]);
+        result.prunedCount = joint.prunedCount;
+        result.peakFactorSize = joint.peakFactorSize;
+        result.conditionedCount = joint.conditionedCount;
+        if(q.conditional){
+            result.posterior = new double[joint.values.length];
+            for(int k = 0; k < result.posterior.length; k++){
+                result.posterior[k] = joint.probability(k);
+            }
+        }
+        return result;
+    }
+
+    //one result per outcome of the query variable from a single elimination, each the same as run() with that value
+    //(null for the values ruled out by evidence on the query variable)
+    public static Result[] runAll(Query q, BayesianNetwork bn){
+        Result result = run(q, bn);
+        Variable queryVar = bn.getVariableByName(q.queryVar);
+        Result[] results = new Result[queryVar.outcomes.size()];
+        for(int k = 0; k < results.length; k++){
+            String observed = q.evidence.get(q.queryVar);
+            if(observed != null && !observed.equals(queryVar.outcomes.get(k))){
+                continue;
+            }
+            results[k] = new Result(result.posterior[k], result.addCount, result.mulCount); //the counts don't depend on the value
+            results[k].prunedCount = result.prunedCount;
+            results[k].peakFactorSize = result.peakFactorSize;
+            results[k].conditionedCount = result.conditionedCount;
+            results[k].posterior = result.posterior;
+        }
+        return results;
+    }
+
+    //unnormalized P(query=k, evidence) for every outcome k, followed by P(evidence), for engines built on top of elimination
+    static ScaledDouble[] joint(Query q, BayesianNetwork bn, FactorCache cache, int[] addCounter, int[] mulCounter){
+        Joint joint = solve(q, bn, cache, addCounter, mulCounter);
+        ScaledDouble[] values = new ScaledDouble[joint.values.length + 1];
+        for(int k = 0; k < joint.values.length; k++){
+            values[k] = joint.scaledValue(k);
+        }
+        values[joint.values.length] = joint.scaledDenominator();
+        return values;
+    }
+
+    //unnormalized answer of one elimination: P(query=k, evidence) for every outcome k and P(evidence)
+    private static class Joint{
+        double[] values; //rows of the final factor by outcome of the query variable, all with the same scale
+        double denominator;
+        int scale;
+        ScaledDouble constant; //product of the factors fully assigned by evidence
+        ScaledDouble[] conditionedValues; //sums over the values of conditioned variables, null without conditioning
+        ScaledDouble conditionedDenominator;
+        int prunedCount;
+        long peakFactorSize;
+        int conditionedCount;
+
+        //P(evidence) is 0: the final factor sums to 0, or a factor fully assigned by evidence is 0
+        boolean isZero(){
+            return conditionedDenominator != null ? conditionedDenominator.isZero() : denominator == 0 || constant.isZero();
+        }
+
+        double probability(int k){
+            if(conditionedValues != null){
+                return conditionedValues[k].divide(conditionedDenominator);
+            }
+            return values[k] / denominator; //the constant and the scale cancel out
+        }
+
+        ScaledDouble scaledValue(int k){
+            return conditionedValues != null ? conditionedValues[k] : withConstant(values[k]);
+        }
+
+        ScaledDouble scaledDenominator(){
+            return conditionedDenominator != null ? conditionedDenominator : withConstant(denominator);
+        }
+
+        private ScaledDouble withConstant(double value){
+            ScaledDouble result = new ScaledDouble(1.0);
+            result.multiply(constant);
+            result.multiply(value, scale);
+            return result;
+        }
+    }
+
+    //what solve() eliminates: the factors of the relevant variables without the constant ones, the order and the
+    //size of the largest factor it builds, all from the scopes before any table is multiplied
+    private static class Plan{
+        List<Factor> factors;
+        ScaledDouble constant; //product of the factors fully assigned by evidence
+        Set<String> candidates; //variables to eliminate
+        List<String> order;
+        long peak;
+        Map<String, Integer> peakScope;
+        int prunedCount;
+    }
+
+    private static Plan plan(Query q, BayesianNetwork bn, FactorCache cache){
+        long relevant = QueryMetrics.start();
+
         //keep only ancestors of query and evidence
         Set<String> relevantVariables = findRelevantVariables(q, bn);
+
+        //keep only variables whose CPT is requisite for the query (Bayes-ball)
+        int prunedCount = 0;
+        if(PRUNE && !q.evidence.containsKey(q.queryVar)){ //an observed query var has nothing to prune
+            Set<String> requisite = findRequisiteVariables(q, bn);
+            prunedCount = relevantVariables.size() - requisite.size();
+            relevantVariables = requisite;
+            //System.out.println("Bayes-ball removed " + prunedCount + " variables");
+        }
 //        System.out.println("-------------------------------------------------------------");
 //        System.out.println("relevant variables for query " + q.queryVar + " and evidence " + q.evidence + ":");
         for(Variable varObj : bn.variables){ //loop over all variables in network
@@ -37,19 +202,22 @@ public class VariableElimination{
         }
         //System.out.println("-------------------------------------------------------------");
 
+        QueryMetrics.stop("relevant", relevant);
+
         //create factors only for relevant variables
+        long creation = QueryMetrics.start();
         List<Factor> factors = new ArrayList<>();
         for(Variable var : bn.variables){ //loop over all variables in network
             if(relevantVariables.contains(var.name)) { //create only relevant
                 //System.out.println("creating factor for variable: " + var.name);
-                Factor factor = Factor.createFromVariable(var, q.evidence, bn);
+                Factor factor = cache.cptFactor(var, q.evidence, bn);
                 factors.add(factor);
             }
         }
         //System.out.println("initial factors created: " + factors.size());
 
         //remove fully assigned constant factors
-        double constantMultiplier = 1.0;
+        ScaledDouble constantMultiplier = new ScaledDouble(1.0); //plain double unless -Dve.numeric=scaled
         Iterator<Factor> iterator = factors.iterator();
         while (iterator.hasNext()){
             Factor f = iterator.next(); //take next factor
@@ -61,14 +229,16 @@ public class VariableElimination{
                 }
             }
             if (allInEvidence) {
-                Map.Entry<Map<String, String>, Double> entry = f.table.entrySet().iterator().next();
-                constantMultiplier *= entry.getValue();
+                constantMultiplier.multiply(f.table[0], f.scale); //single row
                 iterator.remove();
-                //System.out.println("removed constant factor (fully assigned by evidence), multiplied by: " + entry.getValue());
+                //System.out.println("removed constant factor (fully assigned by evidence), multiplied by: " + f.table[0]);
             }
         }
 
+        QueryMetrics.stop("factors", creation);
+
         //check elimination candidates
+        long planning = QueryMetrics.start();
         Set<String> eliminationCandidates = new HashSet<>();
 
         for(String varName : relevantVariables){
@@ -78,54 +248,197 @@ public class VariableElimination{
         }
 
         //eliminate variables according to algorithm's number
-        if(q.algoNum == 2){ //by alphabetical order
-            List<String> eliminationOrder = new ArrayList<>(eliminationCandidates);
-            Collections.sort(eliminationOrder); //sort by alphabetical order
-            //System.out.println("elimination order (alphabetical): " + eliminationOrder);
-            for (String varToEliminate : eliminationOrder){
-                eliminateOneVariable(factors, varToEliminate, bn, addCounter, mulCounter, q); //doing elimination
-            }
-        } else if(q.algoNum == 3){ //by heuristic order
-            //System.out.println("elimination order (heuristic by min factor size):");
-            while (!eliminationCandidates.isEmpty()) {
-                String varToEliminate = chooseNextVariable(factors, eliminationCandidates, bn); //current eliminated var
-                //System.out.println("choosing to eliminate: " + varToEliminate);
-                eliminationCandidates.remove(varToEliminate); //remove after treatment
-                eliminateOneVariable(factors, varToEliminate, bn, addCounter, mulCounter, q); //doing elimination
+        EliminationOrdering ordering = EliminationOrdering.forAlgorithm(q.algoNum);
+        List<String> eliminationOrder = ordering != null ? ordering.order(factors, eliminationCandidates, bn) : new ArrayList<String>();
+
+        //size of every factor of the plan is known from the scopes, check it before allocating anything
+        Map<String, Integer> peakScope = new HashMap<>();
+        long peak = peakFactorSize(factors, eliminationOrder, peakScope);
+        if(peak > MAX_FACTOR_SIZE){ //replan with the order that keeps factors smallest
+            Map<String, Integer> replannedScope = new HashMap<>();
+            List<String> replanned = new GreedyOrdering(GreedyOrdering.Heuristic.WEIGHTED_MIN_FILL).order(factors, eliminationCandidates, bn);
+            long replannedPeak = peakFactorSize(factors, replanned, replannedScope);
+            if(replannedPeak < peak){
+                eliminationOrder = replanned;
+                peak = replannedPeak;
+                peakScope = replannedScope;
             }
         }
+        QueryMetrics.stop("order", planning);
+        QueryMetrics.order(eliminationOrder);
+
+        Plan plan = new Plan();
+        plan.factors = factors;
+        plan.constant = constantMultiplier;
+        plan.candidates = eliminationCandidates;
+        plan.order = eliminationOrder;
+        plan.peak = peak;
+        plan.peakScope = peakScope;
+        plan.prunedCount = prunedCount;
+        return plan;
+    }
+
+    //# entries of the largest factor VariableElimination would build for q (it conditions when that is over
+    //MAX_FACTOR_SIZE), peakScope receives the scope of that factor
+    static long plannedPeak(Query q, BayesianNetwork bn, Map<String, Integer> peakScope){
+        Plan plan = plan(q, bn, new FactorCache(0));
+        peakScope.putAll(plan.peakScope);
+        return plan.peak;
+    }
+
+    private static Joint solve(Query q, BayesianNetwork bn, FactorCache cache, int[] addCounter, int[] mulCounter){
+        Plan plan = plan(q, bn, cache);
+        List<Factor> factors = plan.factors;
+        List<String> eliminationOrder = plan.order;
+        long peak = plan.peak;
+        int prunedCount = plan.prunedCount;
+        ScaledDouble constantMultiplier = plan.constant;
+
+        if(peak > MAX_FACTOR_SIZE){ //still too big, split the query on one variable of the largest factor
+            Joint joint = condition(q, bn, cache, factors, plan.peakScope, plan.candidates, addCounter, mulCounter);
+            joint.prunedCount = prunedCount;
+            return joint;
+        }
 
-        //multiply remaining factors
-        Factor finalFactor = joinMultipleFactors(factors, bn, mulCounter, q.evidence);
+        //System.out.println("elimination order: " + eliminationOrder);
+        Factor finalFactor;
+        EliminationTree tree = EliminationTree.plan(factors, eliminationOrder);
+        if(tree != null){ //independent branches of the order run in parallel, same factors and counts
+            finalFactor = tree.run(factors, cache, addCounter, mulCounter);
+        }else{
+            for (String varToEliminate : eliminationOrder){
+                eliminateOneVariable(factors, varToEliminate, addCounter, mulCounter, cache); //doing elimination
+            }
+
+            //multiply remaining factors
+            long finalJoin = QueryMetrics.start();
+            finalFactor = joinMultipleFactors(factors, mulCounter);
+            QueryMetrics.stop("join", finalJoin);
+        }
 
 //        System.out.println("final factor variables: " + finalFactor.variables);
 //        System.out.println("final factor table: " + finalFactor.table);
 
         //initialization
-        double numerator = 0.0;
+        double[] values = new double[bn.getVariableByName(q.queryVar).outcomes.size()];
         double denominator = 0.0;
 
-        for(Map.Entry<Map<String, String>, Double> entry : finalFactor.table.entrySet()){//loop for each row in final factor
-            if(entry.getKey().get(q.queryVar).equals(q.queryValue)){ //there is complete match
-                numerator = entry.getValue();
+        int queryPos = finalFactor.indexOf(q.queryVar);
+        if(queryPos < 0){
+            throw new IllegalStateException("query variable " + q.queryVar + " is missing from the final factor.");
+        }
+        for(int row = 0; row < finalFactor.table.length; row++){//loop for each row in final factor
+            values[finalFactor.outcomeAt(row, queryPos)] = finalFactor.table[row]; //numerator of each value of the query
+            denominator += finalFactor.table[row];
+        }
+
+        Joint joint = new Joint();
+        joint.values = values;
+        joint.denominator = denominator;
+        joint.scale = finalFactor.scale;
+        joint.constant = constantMultiplier;
+        joint.prunedCount = prunedCount;
+        joint.peakFactorSize = peak;
+        return joint;
+    }
+
+    //P(query, evidence) = sum over the values x of var of P(query, evidence, var=x), each part has a smaller largest factor
+    //(and may be split again), counts are the counts of all parts plus the + operations that add them up
+    private static Joint condition(Query q, BayesianNetwork bn, FactorCache cache, List<Factor> factors, Map<String, Integer> peakScope, Set<String> candidates, int[] addCounter, int[] mulCounter){
+        //the candidate of the largest factor that is in most factors, ties to the larger cardinality then by name
+        String var = null;
+        int bestCount = -1;
+        for(String name : new TreeSet<>(peakScope.keySet())){
+            if(!candidates.contains(name)){
+                continue;
+            }
+            int count = 0;
+            for(Factor f : factors){
+                if(f.variables.contains(name)){
+                    count++;
+                }
+            }
+            if(count > bestCount || (count == bestCount && peakScope.get(name) > peakScope.get(var))){
+                var = name;
+                bestCount = count;
             }
-            denominator += entry.getValue();
+        }
+        if(var == null){
+            throw new FactorTooLargeException("query " + q.originalQuery + " needs a factor over " + peakScope.keySet() + ", larger than the budget of " + MAX_FACTOR_SIZE + " entries", MAX_FACTOR_SIZE + 1);
         }
 
-        double finalProbability;
+        Joint joint = new Joint();
+        joint.values = new double[bn.getVariableByName(q.queryVar).outcomes.size()];
+        joint.conditionedValues = new ScaledDouble[joint.values.length];
+        for(int k = 0; k < joint.values.length; k++){
+            joint.conditionedValues[k] = new ScaledDouble(0.0);
+        }
+        joint.conditionedDenominator = new ScaledDouble(0.0);
+        List<String> outcomes = bn.getVariableByName(var).outcomes;
+        for(int x = 0; x < outcomes.size(); x++){
+            Map<String, String> evidence = new LinkedHashMap<>(q.evidence);
+            evidence.put(var, outcomes.get(x));
+            Joint part = solve(new Query(q.queryVar, q.queryValue, evidence, q.algoNum), bn, cache, addCounter, mulCounter);
+
+            for(int k = 0; k < joint.values.length; k++){
+                joint.conditionedValues[k].add(part.scaledValue(k));
+            }
+            joint.conditionedDenominator.add(part.scaledDenominator());
+            if(x > 0){
+                addCounter[0] += 2; //one + for the numerator (of the asked value), one for the denominator
+            }
+            joint.peakFactorSize = Math.max(joint.peakFactorSize, part.peakFactorSize);
+            joint.conditionedCount = Math.max(joint.conditionedCount, 1 + part.conditionedCount);
+        }
+        return joint;
+    }
 
-        if(q.conditional && denominator != 0){ //conditions for normalization
-            //System.out.println("normalizing result: numerator=" + numerator + ", denominator=" + denominator);
-            addCounter[0]++; //1 + operation is required for normalization
-            finalProbability = numerator / denominator;
-        }else{ //not conditional
-            finalProbability = numerator * constantMultiplier;
+    //# entries of the largest factor built by eliminating in this order and joining what is left, from the scopes only
+    //(evidence has cardinality 1), peakScope receives the scope of that factor
+    static long peakFactorSize(List<Factor> factors, List<String> order, Map<String, Integer> peakScope){
+        List<Map<String, Integer>> scopes = new ArrayList<>();
+        for(Factor f : factors){
+            Map<String, Integer> scope = new HashMap<>();
+            for(int i = 0; i < f.variables.size(); i++){
+                scope.put(f.variables.get(i), f.cardinalities[i]);
+            }
+            scopes.add(scope);
         }
 
-        return new Result(finalProbability, addCounter[0], mulCounter[0]);
+        long peak = 1;
+        for(int step = 0; step <= order.size(); step++){
+            String var = step < order.size() ? order.get(step) : null; //last step: join of the remaining factors
+            Map<String, Integer> joined = new HashMap<>();
+            Iterator<Map<String, Integer>> it = scopes.iterator();
+            while(it.hasNext()){
+                Map<String, Integer> scope = it.next();
+                if(var == null || scope.containsKey(var)){
+                    joined.putAll(scope);
+                    it.remove();
+                }
+            }
+            if(joined.isEmpty()){
+                continue;
+            }
+
+            long size = 1;
+            for(int cardinality : joined.values()){
+                size = size > Long.MAX_VALUE / cardinality ? Long.MAX_VALUE : size * cardinality;
+            }
+            if(size > peak){
+                peak = size;
+                peakScope.clear();
+                peakScope.putAll(joined);
+            }
+            if(var != null){
+                joined.remove(var);
+                scopes.add(joined);
+            }
+        }
+        return peak;
     }
 
-    private static void eliminateOneVariable(List<Factor> factors, String varToEliminate, BayesianNetwork bn, int[] addCounter, int[] mulCounter, Query q){
+    private static void eliminateOneVariable(List<Factor> factors, String varToEliminate, int[] addCounter, int[] mulCounter, FactorCache cache){
 
         List<Factor> involvedFactors = new ArrayList<>(); //all factors that contains eliminated var
 
@@ -139,44 +452,55 @@ public class VariableElimination{
         }
 
         if(!involvedFactors.isEmpty()){ //we found factors that contains eliminated var
-            Factor joined = joinMultipleFactors(involvedFactors, bn, mulCounter, q.evidence); //join on those factors
-            Factor eliminated = eliminate(joined, varToEliminate, bn, addCounter, q.evidence); //new factor that doesn't contain the eliminated var
-            factors.add(eliminated); //add the new one to remaining factors
+            factors.add(eliminateStep(involvedFactors, varToEliminate, addCounter, mulCounter, cache)); //add the new one to remaining factors
         }
     }
 
-    private static String chooseNextVariable(List<Factor> factors, Set<String> candidates, BayesianNetwork bn){
-
-        String bestVar = null;
-        int minSize = Integer.MAX_VALUE;
-
-        for(String var : candidates){ //loop over all candidate variables
-            Set<String> varsInvolved = new HashSet<>();
-            for(Factor f : factors){
-                if(f.variables.contains(var)){
-                    varsInvolved.addAll(f.variables);
-                }
+    //joins the factors that contain varToEliminate (in this order) and sums it out
+    static Factor eliminateStep(List<Factor> involvedFactors, String varToEliminate, int[] addCounter, int[] mulCounter, FactorCache cache){
+        //same input factors and variable give the same factor, reuse it and count its operations again
+        String key = null;
+        if(cache.isEnabled() && allCached(involvedFactors)){
+            key = cache.eliminationKey(involvedFactors, varToEliminate);
+            FactorCache.Entry cached = cache.get(key);
+            if(cached != null){
+                addCounter[0] += cached.addCount;
+                mulCounter[0] += cached.mulCount;
+                QueryMetrics.factors(cached.factors, cached.maxFactorSize); //what the step would have built
+                return cached.factor;
             }
-            varsInvolved.remove(var); //remove the variable we're going to eliminate
+        }
 
-            //calculate the size of the factor after elimination
-            int size = 1;
-            for(String v : varsInvolved){
-                Variable realVar = bn.getVariableByName(v);
-                size *= realVar.outcomes.size();
-            }
+        int[] adds = new int[1];
+        int[] muls = new int[1];
+        int built = involvedFactors.size(); //# joins + the sum out
+        long joining = QueryMetrics.start();
+        Factor joined = joinMultipleFactors(involvedFactors, muls); //join on those factors
+        QueryMetrics.stop("join", joining);
+        long summing = QueryMetrics.start();
+        Factor eliminated = eliminate(joined, varToEliminate, adds); //new factor that doesn't contain the eliminated var
+        QueryMetrics.stop("sum", summing);
+
+        addCounter[0] += adds[0];
+        mulCounter[0] += muls[0];
+        if(key != null){
+            eliminated.key = key;
+            long largest = built > 1 ? joined.table.length : eliminated.table.length; //the final join holds every variable of the step
+            cache.put(key, new FactorCache.Entry(eliminated, adds[0], muls[0], built, largest));
+        }
+        return eliminated;
+    }
 
-            //f the size we found now is better
-            if(size < minSize){
-                //update
-                minSize = size;
-                bestVar = var;
+    //true if all factors have a cache key (built from CPTs by the cache)
+    private static boolean allCached(List<Factor> factors){
+        for(Factor f : factors){
+            if(f.key == null){
+                return false;
             }
         }
-        return bestVar; //return the one that most worth eliminating
+        return true;
     }
 
-
     private static Set<String> findRelevantVariables(Query q, BayesianNetwork bn){
 
         Set<String> relevant = new HashSet<>();
@@ -208,13 +532,74 @@ public class VariableElimination{
     }
 
 
+    //Bayes-ball (Shachter 1998): a ball starts at the query variable, passes through unobserved variables
+    //and bounces back from observed ones. only variables marked on top have a requisite CPT, this is always
+    //a subset of the ancestors of the query and evidence
+    private static Set<String> findRequisiteVariables(Query q, BayesianNetwork bn){
+        int n = bn.variables.size();
+        boolean[] observed = new boolean[n];
+        for(String ev : q.evidence.keySet()){
+            observed[bn.getVariableId(ev)] = true;
+        }
+
+        boolean[] top = new boolean[n]; //CPT is requisite, ball was sent to the parents
+        boolean[] bottom = new boolean[n]; //ball was sent to the children
+
+        Deque<int[]> schedule = new ArrayDeque<>(); //{variable id, 1 if visited from a child / 0 if from a parent}
+        schedule.add(new int[]{bn.getVariableId(q.queryVar), 1}); //query is visited as if from a child
+
+        while(!schedule.isEmpty()){
+            int[] visit = schedule.poll();
+            int id = visit[0];
+            boolean fromChild = visit[1] == 1;
+            Variable var = bn.variables.get(id);
+
+            if(fromChild && !observed[id]){ //unobserved, ball passes up and down
+                if(!top[id]){
+                    top[id] = true;
+                    for(int parent : var.parentIds){
+                        schedule.add(new int[]{parent, 1});
+                    }
+                }
+                if(!bottom[id]){
+                    bottom[id] = true;
+                    for(int child : var.childIds){
+                        schedule.add(new int[]{child, 0});
+                    }
+                }
+            } else if(!fromChild){
+                if(observed[id]){ //observed, ball bounces back to the parents
+                    if(!top[id]){
+                        top[id] = true;
+                        for(int parent : var.parentIds){
+                            schedule.add(new int[]{parent, 1});
+                        }
+                    }
+                } else if(!bottom[id]){ //unobserved, ball passes down to the children
+                    bottom[id] = true;
+                    for(int child : var.childIds){
+                        schedule.add(new int[]{child, 0});
+                    }
+                }
+            }
+        }
+
+        Set<String> requisite = new HashSet<>();
+        for(int i = 0; i < n; i++){
+            if(top[i]){
+                requisite.add(bn.variables.get(i).name);
+            }
+        }
+        return requisite;
+    }
+
     //joining multiple factors (first. order by table size from small to large, then ASCII sum small to large)
-    private static Factor joinMultipleFactors(List<Factor> factors, BayesianNetwork bn, int[] mulCounter, Map<String, String> evidence){
+    static Factor joinMultipleFactors(List<Factor> factors, int[] mulCounter){
 
         while(factors.size() > 1){
             factors.sort((f1, f2) ->{
-                if(f1.table.size() != f2.table.size()){
-                    return Integer.compare(f1.table.size(), f2.table.size()); //by table size
+                if(f1.table.length != f2.table.length){
+                    return Integer.compare(f1.table.length, f2.table.length); //by table size
                 }else{
                     return asciiSum(f1.variables) - asciiSum(f2.variables); //tie brake - by ASCII sum
                 }
@@ -226,7 +611,7 @@ public class VariableElimination{
             Factor f2 = factors.remove(0);
 
             //join those 2 factors
-            Factor joined = join(f1, f2, bn, mulCounter, evidence); //call helper function
+            Factor joined = join(f1, f2, mulCounter); //call helper function
 
             //add the new joined factor to factors list
             factors.add(joined);
@@ -235,7 +620,7 @@ public class VariableElimination{
     }
 
     //joining 2 factors
-    public static Factor join(Factor f1, Factor f2, BayesianNetwork bn, int[] mulCounter, Map<String, String> evidence){
+    public static Factor join(Factor f1, Factor f2, int[] mulCounter){
         List<String> allVars = new ArrayList<>();
 
         //the new factor will include a union of all the variables
@@ -256,112 +641,303 @@ public class VariableElimination{
 //        System.out.println("  factor 2 variables: " + f2.variables);
 //        System.out.println("  result factor will have variables: " + allVars);
 
-        Factor result = new Factor(allVars);
+        //dimensions of the new factor, taken from the factor that holds each variable
+        int n = allVars.size();
+        int[] varIds = new int[n];
+        int[] cardinalities = new int[n];
+        int[] offsets = new int[n];
+        for(int i = 0; i < n; i++){
+            Factor source = f1.indexOf(allVars.get(i)) >= 0 ? f1 : f2;
+            int pos = source.indexOf(allVars.get(i));
+            varIds[i] = source.varIds[pos];
+            cardinalities[i] = source.cardinalities[pos];
+            offsets[i] = source.offsets[pos];
+        }
 
-        List<Map<String, String>> allAssignments = generateAllAssignments(allVars, bn, evidence); //creating all possible assignment
+        long size = 1;
+        for(int cardinality : cardinalities){
+            size = size > Long.MAX_VALUE / cardinality ? Long.MAX_VALUE : size * cardinality;
+        }
+        if(size > MAX_FACTOR_SIZE){ //last line of defense, the planners check before they start
+            throw new FactorTooLargeException("factor over " + allVars + " would have " + size + " entries, more than the budget of " + MAX_FACTOR_SIZE, size);
+        }
 
-        for(Map<String, String> assignment : allAssignments){ //loop over all assignment
-            double p1 = f1.getProbabilityForAssignment(assignment);
-            double p2 = f2.getProbabilityForAssignment(assignment);
-            double product = p1 * p2;
+        Factor result = new Factor(allVars, varIds, cardinalities, offsets);
 
-            result.table.put(new LinkedHashMap<>(assignment), product); //save the multiplication result in the new factor
+        //stride of each result variable inside f1 and f2 (0 if the variable is not there)
+        int[] strides1 = stridesIn(f1, allVars);
+        int[] strides2 = stridesIn(f2, allVars);
 
-            mulCounter[0]++; //update multiplication counter
-            //System.out.println("  assignment: " + assignment + ", p1=" + p1 + ", p2=" + p2 + ", product=" + product);
+        int run = contiguousRun(f1, f2, allVars);
+        if(run >= KERNEL_RUN){
+            boolean contiguous1 = f1.indexOf(allVars.get(n - 1)) >= 0; //else f2 holds the run and f1 is a scalar for it
+            boolean contiguous2 = f2.indexOf(allVars.get(n - 1)) >= 0;
+            forEachSlice(result.table.length, (from, to) -> joinRuns(f1, f2, result, strides1, strides2, run, contiguous1, contiguous2, from, to));
+        }else{
+            forEachSlice(result.table.length, (from, to) -> joinRows(f1, f2, result, strides1, strides2, from, to));
         }
+        mulCounter[0] += result.table.length; //one * per row
 
 //        System.out.println("finished joining. Total multiplications done: " + mulCounter[0]);
 //        System.out.println("-------------------------------------------------------------");
 
+        result.scale = f1.scale + f2.scale;
+        if(ScaledDouble.ENABLED){
+            result.rescale(); //keep the largest value near 1, products of deep chains don't underflow
+        }
+        QueryMetrics.factor(result);
+
         return result;
     }
 
-    public static Factor eliminate(Factor f, String varToRemove, BayesianNetwork bn, int[] addCounter, Map<String, String> evidence){
+    public static Factor eliminate(Factor f, String varToRemove, int[] addCounter){
         //System.out.println("eliminating variable: " + varToRemove + " from factor with variables: " + f.variables);
 
+        int removedPos = f.indexOf(varToRemove);
+
         //add all variables except the one we want to remove
         List<String> newVariables = new ArrayList<>();
-        for(String var : f.variables){
-            if(!var.equals(varToRemove)){
-                newVariables.add(var);
+        int n = f.variables.size() - 1;
+        int[] varIds = new int[n];
+        int[] cardinalities = new int[n];
+        int[] offsets = new int[n];
+        int j = 0;
+        for(int i = 0; i < f.variables.size(); i++){
+            if(i != removedPos){
+                newVariables.add(f.variables.get(i));
+                varIds[j] = f.varIds[i];
+                cardinalities[j] = f.cardinalities[i];
+                offsets[j] = f.offsets[i];
+                j++;
             }
         }
 
-        Factor result = new Factor(newVariables);
+        Factor result = new Factor(newVariables, varIds, cardinalities, offsets);
+        result.scale = f.scale; //sums stay in the range of the source factor
 
-        List<Map<String, String>> allNewAssignments = generateAllAssignments(newVariables, bn, evidence); //create all possible assignment
+        int[] sourceStrides = stridesIn(f, newVariables); //stride of each remaining variable in the source factor
+        int removedStride = f.strides[removedPos];
+        int removedCard = f.cardinalities[removedPos];
 
-        Variable var = bn.getVariableByName(varToRemove);
-
-        for(Map<String, String> partialAssignment : allNewAssignments){
+        if(removedStride >= KERNEL_RUN){ //the variables after the removed one are a contiguous run in f and in the result
+            forEachSlice(result.table.length, (from, to) -> sumRuns(f, result, sourceStrides, removedStride, removedCard, from, to));
+        }else{
+            forEachSlice(result.table.length, (from, to) -> sumRows(f, result, sourceStrides, removedStride, removedCard, from, to));
+        }
+        addCounter[0] += result.table.length * (removedCard - 1); //count + operations only from the second addition
 
-            double sum = 0.0;
-            boolean first = true;
+//        System.out.println("finished eliminating " + varToRemove + ". Total additions so far: " + addCounter[0]);
+//        System.out.println("-------------------------------------------------------------");
 
-            for(String value : var.outcomes){ //loop over all outcomes of eliminated var
-                Map<String, String> fullAssignment = new LinkedHashMap<>(partialAssignment);
-                fullAssignment.put(varToRemove, value);
+        QueryMetrics.factor(result);
+        return result; //return the new factor without var to eliminate
+    }
 
-                double prob = f.getProbabilityForAssignment(fullAssignment);
-                sum += prob;
+    //rows [from, to) of the join of f1 and f2
+    private static void joinRows(Factor f1, Factor f2, Factor result, int[] strides1, int[] strides2, int from, int to){
+        int n = result.variables.size();
+        int[] cardinalities = result.cardinalities;
+
+        //odometer over the result variables, starting at row from, index1/index2 follow the matching rows of f1/f2
+        int[] counter = new int[n];
+        int index1 = 0;
+        int index2 = 0;
+        for(int i = 0; i < n; i++){
+            counter[i] = from / result.strides[i] % cardinalities[i];
+            index1 += counter[i] * strides1[i];
+            index2 += counter[i] * strides2[i];
+        }
 
-                if(!first){
-                    addCounter[0]++; //count + operations only from the second addition
-                }
+        for(int row = from; row < to; row++){ //loop over all assignment
+            double p1 = f1.table[index1];
+            double p2 = f2.table[index2];
+            double product = p1 * p2;
 
-                first = false;
+            result.table[row] = product; //save the multiplication result in the new factor
+            //System.out.println("  row: " + row + ", p1=" + p1 + ", p2=" + p2 + ", product=" + product);
 
-                //System.out.println("  summing assignment: " + fullAssignment + " -> prob=" + prob);
+            //advance to the next assignment, last variable changes fastest
+            for(int i = n - 1; i >= 0; i--){
+                counter[i]++;
+                index1 += strides1[i];
+                index2 += strides2[i];
+                if(counter[i] < cardinalities[i]){
+                    break;
+                }
+                //wrap around and carry to the previous variable
+                counter[i] = 0;
+                index1 -= cardinalities[i] * strides1[i];
+                index2 -= cardinalities[i] * strides2[i];
             }
+        }
+    }
 
-            result.table.put(new LinkedHashMap<>(partialAssignment), sum); //put the result of the addition in the new factor table
-            //System.out.println("result assignment after eliminating " + varToRemove + ": " + partialAssignment + " -> summed prob=" + sum);
+    //rows [from, to) of the sum out of the variable at removedStride from f
+    private static void sumRows(Factor f, Factor result, int[] sourceStrides, int removedStride, int removedCard, int from, int to){
+        int n = result.variables.size();
+        int[] cardinalities = result.cardinalities;
+
+        //odometer over the remaining variables, starting at row from, base follows the first matching row in f
+        int[] counter = new int[n];
+        int base = 0;
+        for(int i = 0; i < n; i++){
+            counter[i] = from / result.strides[i] % cardinalities[i];
+            base += counter[i] * sourceStrides[i];
         }
 
-//        System.out.println("finished eliminating " + varToRemove + ". Total additions so far: " + addCounter[0]);
-//        System.out.println("-------------------------------------------------------------");
+        for(int row = from; row < to; row++){
 
-        return result; //return the new factor without var to eliminate
-    }
+            double sum = 0.0;
 
-    //generate all possible assignment
-    private static List<Map<String, String>> generateAllAssignments(List<String> variables, BayesianNetwork bn, Map<String, String> evidence) {
-        List<Map<String, String>> result = new ArrayList<>();
-        generateAllAssignmentsHelper(variables, 0, new LinkedHashMap<>(), bn, evidence, result);
-        return result;
+            for(int k = 0; k < removedCard; k++){ //loop over all outcomes of eliminated var
+                double prob = f.table[base + k * removedStride];
+                sum += prob;
+                //System.out.println("  summing row: " + (base + k * removedStride) + " -> prob=" + prob);
+            }
+
+            result.table[row] = sum; //put the result of the addition in the new factor table
+            //System.out.println("result row after eliminating: " + row + " -> summed prob=" + sum);
+
+            //advance to the next assignment of the remaining variables
+            for(int i = n - 1; i >= 0; i--){
+                counter[i]++;
+                base += sourceStrides[i];
+                if(counter[i] < cardinalities[i]){
+                    break;
+                }
+                counter[i] = 0;
+                base -= cardinalities[i] * sourceStrides[i];
+            }
+        }
     }
 
-    //recursive helper
-    private static void generateAllAssignmentsHelper(List<String> variables, int index, Map<String, String> current, BayesianNetwork bn, Map<String, String> evidence, List<Map<String, String>> result){
+    //# rows of the longest run of trailing result variables that each factor holds as its own trailing variables,
+    //in the same order, or doesn't hold at all: inside such a run both factors move by 1 row, or stay
+    private static int contiguousRun(Factor f1, Factor f2, List<String> allVars){
+        Factor[] factors = {f1, f2};
+        int[] mode = new int[2]; //0 unknown, 1 holds the run, -1 doesn't
+        int n = allVars.size();
+        int run = 1;
+        for(int s = 1; s <= n; s++){
+            String var = allVars.get(n - s);
+            for(int i = 0; i < 2; i++){
+                Factor f = factors[i];
+                int size = f.variables.size();
+                if(f.indexOf(var) >= 0){
+                    if(mode[i] < 0 || size < s || !f.variables.get(size - s).equals(var)){
+                        return run;
+                    }
+                    mode[i] = 1;
+                }else{
+                    if(mode[i] > 0){
+                        return run;
+                    }
+                    mode[i] = -1;
+                }
+            }
+            run *= f1.indexOf(var) >= 0 ? f1.cardinalities[f1.indexOf(var)] : f2.cardinalities[f2.indexOf(var)];
+        }
+        return run;
+    }
 
-        if(index == variables.size()){ //we went through all the variables
+    //rows [from, to) of the join of f1 and f2, a run of rows at a time
+    private static void joinRuns(Factor f1, Factor f2, Factor result, int[] strides1, int[] strides2, int run, boolean contiguous1, boolean contiguous2, int from, int to){
+        int n = result.variables.size();
+        for(int row = from; row < to; ){
+            int length = Math.min(run - row % run, to - row); //slices may start and end inside a run
+            int index1 = 0;
+            int index2 = 0;
+            for(int i = 0; i < n; i++){
+                int outcome = row / result.strides[i] % result.cardinalities[i];
+                index1 += outcome * strides1[i];
+                index2 += outcome * strides2[i];
+            }
+            if(contiguous1 && contiguous2){
+                FactorKernel.SELECTED.multiply(f1.table, index1, f2.table, index2, result.table, row, length);
+            }else if(contiguous1){
+                FactorKernel.SELECTED.scale(f1.table, index1, f2.table[index2], result.table, row, length);
+            }else{
+                FactorKernel.SELECTED.scale(f2.table, index2, f1.table[index1], result.table, row, length);
+            }
+            row += length;
+        }
+    }
 
-            if(isConsistent(current, evidence)){ //the assignment we created is consistent with the evidence
-                result.add(new LinkedHashMap<>(current));
+    //rows [from, to) of the sum out, a run of rows (the variables after the removed one) at a time
+    private static void sumRuns(Factor f, Factor result, int[] sourceStrides, int removedStride, int removedCard, int from, int to){
+        int n = result.variables.size();
+        for(int row = from; row < to; ){
+            int length = Math.min(removedStride - row % removedStride, to - row);
+            int base = 0;
+            for(int i = 0; i < n; i++){
+                base += row / result.strides[i] % result.cardinalities[i] * sourceStrides[i];
             }
-            return;
+            FactorKernel.SELECTED.sumStrided(f.table, base, removedStride, removedCard, result.table, row, length);
+            row += length;
         }
+    }
 
-        String varName = variables.get(index); //current var
-        Variable var = bn.getVariableByName(varName); //as a variable
+    //computes rows [from, to) of a result table
+    private interface Rows{
+        void compute(int from, int to);
+    }
 
-        for(String outcome : var.outcomes){ //loop over all possible outcome
-            current.put(varName, outcome); //fix possible value to current assignment
-            generateAllAssignmentsHelper(variables, index + 1, current, bn, evidence, result); //recursive call to the next var
-            current.remove(varName);
+    //runs rows over [0, size), split into slices on the pool when the table is large
+    private static void forEachSlice(int size, Rows rows){
+        if(PARALLEL_ROWS <= 0 || size < PARALLEL_ROWS || POOL.getParallelism() <= 1){
+            rows.compute(0, size);
+            return;
+        }
+        int grain = Math.max(1, Math.max(PARALLEL_ROWS / 4, size / (4 * POOL.getParallelism()))); //a few slices per thread
+        Slice slices = new Slice(rows, 0, size, grain, QueryMetrics.current());
+        if(ForkJoinTask.getPool() == POOL){ //already on the pool, e.g. in a branch of an EliminationTree
+            slices.invoke();
+        }else{
+            POOL.invoke(slices);
         }
     }
 
-    public static boolean isConsistent(Map<String, String> assignment, Map<String, String> evidence){
-        for(String key : evidence.keySet()){ //each var in evidence
-            if(assignment.containsKey(key)){ //belongs to current factor
-                if(!assignment.get(key).equals(evidence.get(key))){ //if there is a contradiction
-                    return false;
+    private static class Slice extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        final Rows rows;
+        final int from;
+        final int to;
+        final int grain;
+        final QueryMetrics metrics; //of the query the factor belongs to
+
+        Slice(Rows rows, int from, int to, int grain, QueryMetrics metrics){ //constructor
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from <= grain){
+                QueryMetrics previous = QueryMetrics.attach(metrics);
+                try {
+                    rows.compute(from, to);
+                } finally {
+                    QueryMetrics.attach(previous);
                 }
+                return;
             }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Slice(rows, from, middle, grain, metrics), new Slice(rows, middle, to, grain, metrics));
         }
-        return true;
+    }
+
+    //stride of each of the given variables inside factor f, 0 if f doesn't contain the variable
+    private static int[] stridesIn(Factor f, List<String> vars){
+        int[] result = new int[vars.size()];
+        for(int i = 0; i < vars.size(); i++){
+            int pos = f.indexOf(vars.get(i));
+            result[i] = pos >= 0 ? f.strides[pos] : 0;
+        }
+        return result;
     }
 
     //calculate ASCII sum of variables
@@ -1,61 +1,210 @@
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
-import java.io.File;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public class XMLParser{
+
+    //exact powers of ten as doubles, used by the fast path of parseTable
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++){
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    //a <DEFINITION> as read, resolved against the variables once the whole file is read
+    private static class Definition{
+        String varName;
+        final List<String> given = new ArrayList<>();
+        double[] table;
+    }
+
+    //the network of the file, an empty network (after printing the error) if it can't be read
     public static BayesianNetwork readXML(String fileName){
-        BayesianNetwork network = new BayesianNetwork();
+        try {
+            return parse(fileName);
+        }catch(Exception e){
+            System.out.println("error reading XML: " + e.getMessage());
+            return new BayesianNetwork();
+        }
+    }
 
-        try{
-            //read the XML file from the project
-            File file = new File(fileName);
+    //the network of the file, throws if it can't be read or is not a valid network
+    public static BayesianNetwork parse(String fileName) throws IOException, XMLStreamException{
+        BayesianNetwork network = new BayesianNetwork();
 
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document doc = builder.parse(file);
-            doc.getDocumentElement().normalize(); //to delete extra spaces
+        //read the XML file from the project in one streaming pass. VARIABLE elements are added as they come, DEFINITION
+        //elements are kept until the end, so they may come before the variables they name, as with the DOM parser
+        try (InputStream in = new BufferedInputStream(new FileInputStream(fileName))){
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false); //no external entities
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
 
-            NodeList varNodes = doc.getElementsByTagName("VARIABLE");
-            for(int i = 0; i < varNodes.getLength(); i++){
-                Element varElement = (Element) varNodes.item(i);
-                Variable var = new Variable();
+            List<Definition> definitions = new ArrayList<>();
+            try {
+                while (reader.hasNext()){
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT){
+                        continue;
+                    }
+                    if (reader.getLocalName().equals("VARIABLE")){
+                        network.addVariable(readVariable(reader)); //add variable to network
+                    } else if (reader.getLocalName().equals("DEFINITION")){
+                        definitions.add(readDefinition(reader));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
 
-                var.name = varElement.getElementsByTagName("NAME").item(0).getTextContent(); //saving the variable name
+            for (Definition definition : definitions){
+                Variable var = network.getVariableByName(definition.varName);
+                if (var == null){
+                    throw new IllegalArgumentException("DEFINITION for unknown variable '" + definition.varName + "'");
+                }
+                var.parents.addAll(definition.given);
+                var.cpt = DoubleBuffer.wrap(definition.table);
+            }
 
-                NodeList outcomes = varElement.getElementsByTagName("OUTCOME");
-                for(int j = 0; j < outcomes.getLength(); j++){
-                    var.outcomes.add(outcomes.item(j).getTextContent()); //saving possible values
+            //the CPT must have one value for every combination of the parents and the variable
+            for (Definition definition : definitions){
+                Variable var = network.getVariableByName(definition.varName);
+                int expected = var.outcomes.size();
+                for (String parent : var.parents){
+                    Variable parentVar = network.getVariableByName(parent);
+                    if (parentVar == null){
+                        throw new IllegalArgumentException("unknown parent '" + parent + "' of variable '" + var.name + "'");
+                    }
+                    expected *= parentVar.outcomes.size();
+                }
+                if (var.cpt.capacity() != expected){
+                    throw new IllegalArgumentException("CPT of '" + var.name + "' has " + var.cpt.capacity() + " values, expected " + expected);
                 }
-                network.addVariable(var); //add variable to network
             }
 
-            //reading cpt's
-            NodeList defNodes = doc.getElementsByTagName("DEFINITION");
-            for(int i =0; i < defNodes.getLength(); i++){
-                Element defElement = (Element) defNodes.item(i);
+            network.compile(); //build lookup tables for inference
+        }
+        return network;
+    }
 
-                String varName = defElement.getElementsByTagName("FOR").item(0).getTextContent(); //relevant variable
-                Variable var = network.getVariableByName(varName);
+    //reads <VARIABLE> up to its end tag: the variable name and possible values
+    private static Variable readVariable(XMLStreamReader reader) throws XMLStreamException{
+        Variable var = new Variable();
+        while (reader.hasNext()){
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT){
+                if (reader.getLocalName().equals("NAME")){
+                    var.name = reader.getElementText().trim(); //saving the variable name
+                } else if (reader.getLocalName().equals("OUTCOME")){
+                    var.outcomes.add(reader.getElementText().trim()); //saving possible values
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("VARIABLE")){
+                break;
+            }
+        }
+        return var;
+    }
+
+    //reads <DEFINITION> up to its end tag: the variable name, its parents and cpt
+    private static Definition readDefinition(XMLStreamReader reader) throws XMLStreamException{
+        Definition definition = new Definition();
 
-                NodeList givenList = defElement.getElementsByTagName("GIVEN");
-                for (int j = 0; j < givenList.getLength(); j++){
-                    var.parents.add(givenList.item(j).getTextContent()); //adding relevant parents
+        while (reader.hasNext()){
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT){
+                String tag = reader.getLocalName();
+                if (tag.equals("FOR")){
+                    definition.varName = reader.getElementText().trim(); //relevant variable
+                } else if (tag.equals("GIVEN")){
+                    definition.given.add(reader.getElementText().trim()); //adding relevant parents
+                } else if (tag.equals("TABLE")){
+                    definition.table = parseTable(reader.getElementText());
                 }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("DEFINITION")){
+                break;
+            }
+        }
+
+        if (definition.varName == null || definition.table == null){
+            throw new IllegalArgumentException("DEFINITION without FOR or TABLE");
+        }
+        return definition;
+    }
+
+    //parses the whitespace separated numbers of a TABLE straight into a double[]
+    private static double[] parseTable(CharSequence text){
+        double[] values = new double[16];
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+
+        while (i < length){
+            while (i < length && Character.isWhitespace(text.charAt(i))){ //skip spaces
+                i++;
+            }
+            if (i == length){
+                break;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(text.charAt(i))){
+                i++;
+            }
 
-                String tableText = defElement.getElementsByTagName("TABLE").item(0).getTextContent();
-                String[] probs = tableText.trim().split("\\s+"); //split by spaces
-                var.cpt = new double[probs.length];
-                for(int j = 0; j < probs.length; j++){
-                    var.cpt[j] = Double.parseDouble(probs[j]); //convert to double
+            if (count == values.length){
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = parseNumber(text, start, i);
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    //decimal number in [start, end), plain numbers like 0.95 take the exact fast path (mantissa below 2^53,
+    //exact power of ten), anything else goes through Double.parseDouble, so the result is always the same
+    private static double parseNumber(CharSequence text, int start, int end){
+        int i = start;
+        boolean negative = false;
+        if (text.charAt(i) == '-' || text.charAt(i) == '+'){
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        boolean anyDigit = false;
+        int digits = 0;
+        int scale = 0; //# digits after the point
+        boolean point = false;
+        for (; i < end; i++){
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9'){
+                anyDigit = true;
+                if (mantissa != 0 || c != '0'){
+                    digits++;
                 }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point){
+                    scale++;
+                }
+            } else if (c == '.' && !point){
+                point = true;
+            } else {
+                break; //exponent or anything unusual
             }
+        }
 
-        }catch(Exception e){
-            System.out.println("error reading XML: " + e.getMessage());
+        if (i == end && digits <= 18 && mantissa <= (1L << 53) && scale < POWERS_OF_TEN.length && anyDigit){
+            double value = mantissa / POWERS_OF_TEN[scale]; //correctly rounded: both operands are exact
+            return negative ? -value : value;
         }
-        return network;
+        return Double.parseDouble(text.subSequence(start, end).toString());
     }
 }
@@ -0,0 +1,21 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//runs the benchmarks with the gc profiler, so every result also reports the allocation rate
+//accepts the usual JMH command line, e.g. java -jar target/benchmarks.jar InferenceBenchmark -p variables=200
+public class BenchmarkMain{
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException{
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,156 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+//entry points of the engine, which lives in the default package and can't be imported from here
+//(JMH doesn't allow benchmarks in the default package), so they are bound once as method handles
+final class Engine{
+
+    static final Class<?> NETWORK = load("BayesianNetwork");
+    static final Class<?> QUERY = load("Query");
+    static final Class<?> VARIABLE = load("Variable");
+
+    private static final MethodHandle READ_XML = findStatic("XMLParser", "readXML", String.class);
+    private static final MethodHandle GENERATE_XML = findStatic("NetworkGenerator", "generateXML", int.class, int.class, int.class, int.class, long.class);
+    private static final MethodHandle NEW_QUERY = findConstructor(QUERY, String.class);
+    private static final MethodHandle JOINT = findStatic("JointProbability", "run", QUERY, NETWORK);
+    private static final MethodHandle SIMPLE = findStatic("SimpleInference", "run", QUERY, NETWORK);
+    private static final MethodHandle ELIMINATION = findStatic("VariableElimination", "run", QUERY, NETWORK);
+    private static final MethodHandle CREATE_FACTOR = findStatic("Factor", "createFromVariable", VARIABLE, Map.class, NETWORK);
+    private static final MethodHandle VARIABLES = findGetter(NETWORK, "variables");
+    private static final MethodHandle NAME = findGetter(VARIABLE, "name");
+
+    private Engine(){
+    }
+
+    static Object readXML(String fileName){
+        try {
+            return READ_XML.invokeExact((Object) fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String generateXML(int variables, int maxParents, int outcomes, int window, long seed){
+        try {
+            return (String) (Object) GENERATE_XML.invokeExact((Object) variables, (Object) maxParents, (Object) outcomes, (Object) window, (Object) seed);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object query(String line){
+        try {
+            return NEW_QUERY.invokeExact((Object) line);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object joint(Object query, Object network){
+        try {
+            return JOINT.invokeExact(query, network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object simpleInference(Object query, Object network){
+        try {
+            return SIMPLE.invokeExact(query, network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object variableElimination(Object query, Object network){
+        try {
+            return ELIMINATION.invokeExact(query, network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object createFactor(Object variable, Map<String, String> evidence, Object network){
+        try {
+            return CREATE_FACTOR.invokeExact(variable, (Object) evidence, network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static List<?> variables(Object network){
+        try {
+            return (List<?>) (Object) VARIABLES.invokeExact(network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String name(Object variable){
+        try {
+            return (String) (Object) NAME.invokeExact(variable);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t){
+        if (t instanceof RuntimeException){
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error){
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    private static Class<?> load(String name){
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("engine class " + name + " is missing", e);
+        }
+    }
+
+    //handles are adapted to all-Object signatures so the call sites can use invokeExact
+    private static MethodHandle findStatic(String owner, String name, Class<?>... params){
+        Class<?> type = load(owner);
+        for (Method m : type.getMethods()){
+            if (m.getName().equals(name) && Arrays.equals(m.getParameterTypes(), params)){
+                try {
+                    return generic(MethodHandles.publicLookup().unreflect(m));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalStateException("missing " + owner + "." + name);
+    }
+
+    private static MethodHandle generic(MethodHandle handle){
+        return handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+    }
+
+    private static MethodHandle findConstructor(Class<?> type, Class<?>... params){
+        try {
+            return generic(MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findGetter(Class<?> type, String field){
+        try {
+            return generic(MethodHandles.publicLookup().unreflectGetter(type.getField(field)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
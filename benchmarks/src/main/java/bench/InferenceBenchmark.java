@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//one query per invocation, cycling through the fixture's queries
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferenceBenchmark{
+
+    private int next = 0;
+
+    private int nextIndex(int size){
+        next = (next + 1) % size;
+        return next;
+    }
+
+    @Benchmark
+    public Object jointProbability(SmallNetwork net){
+        NetworkFixture f = net.fixture;
+        return Engine.joint(f.jointQueries.get(nextIndex(f.jointQueries.size())), f.network);
+    }
+
+    @Benchmark
+    public Object simpleInference(SmallNetwork net){
+        NetworkFixture f = net.fixture;
+        return Engine.simpleInference(f.simpleQueries.get(nextIndex(f.simpleQueries.size())), f.network);
+    }
+
+    @Benchmark
+    public Object variableEliminationAbc(LargeNetwork net){
+        NetworkFixture f = net.fixture;
+        return Engine.variableElimination(f.abcQueries.get(nextIndex(f.abcQueries.size())), f.network);
+    }
+
+    @Benchmark
+    public Object variableEliminationHeuristic(LargeNetwork net){
+        NetworkFixture f = net.fixture;
+        return Engine.variableElimination(f.heuristicQueries.get(nextIndex(f.heuristicQueries.size())), f.network);
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.*;
+
+//networks for variable elimination, parsing and factor construction
+@State(Scope.Benchmark)
+public class LargeNetwork{
+
+    @Param({"50", "200", "1000"})
+    public int variables;
+
+    @Param({"2", "4"})
+    public int inDegree;
+
+    @Param({"2", "3"})
+    public int outcomes;
+
+    @Param({"42"})
+    public long seed;
+
+    NetworkFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        fixture = NetworkFixture.create(variables, inDegree, outcomes, seed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        fixture.delete();
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//a generated network written to a temp file and parsed, with seeded random queries over it
+final class NetworkFixture{
+
+    private static final int QUERIES = 64; //# queries cycled through by the benchmarks
+
+    final File xmlFile;
+    final Object network;
+    final List<Object> jointQueries = new ArrayList<>(); //full assignments
+    final List<Object> simpleQueries = new ArrayList<>(); //conditional, algorithm 1
+    final List<Object> abcQueries = new ArrayList<>(); //conditional, algorithm 2
+    final List<Object> heuristicQueries = new ArrayList<>(); //conditional, algorithm 3
+    final List<Map<String, String>> evidences = new ArrayList<>(); //evidence of the conditional queries
+
+    private NetworkFixture(File xmlFile, Object network){
+        this.xmlFile = xmlFile;
+        this.network = network;
+    }
+
+    static NetworkFixture create(int variables, int inDegree, int outcomes, long seed) throws IOException{
+        String xml = Engine.generateXML(variables, inDegree, outcomes, 2 * inDegree, seed);
+        File file = File.createTempFile("bench_net_", ".xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+        NetworkFixture fixture = new NetworkFixture(file, Engine.readXML(file.getPath()));
+        Random random = new Random(seed);
+
+        List<String> names = new ArrayList<>();
+        for (Object variable : Engine.variables(fixture.network)){
+            names.add(Engine.name(variable));
+        }
+
+        for (int i = 0; i < QUERIES; i++){
+            StringBuilder joint = new StringBuilder("P(");
+            for (int v = 0; v < variables; v++){
+                joint.append(v > 0 ? "," : "").append(names.get(v)).append("=v").append(1 + random.nextInt(outcomes));
+            }
+            fixture.jointQueries.add(Engine.query(joint.append(')').toString()));
+
+            //query variable and up to 3 other evidence variables
+            List<Integer> picked = new ArrayList<>();
+            for (int v = 0; v < variables; v++){
+                picked.add(v);
+            }
+            Collections.shuffle(picked, random);
+            int queryVar = picked.get(0);
+            Map<String, String> evidence = new LinkedHashMap<>();
+            for (int e = 1; e <= Math.min(3, variables - 1); e++){
+                evidence.put(names.get(picked.get(e)), "v" + (1 + random.nextInt(outcomes)));
+            }
+
+            StringBuilder conditional = new StringBuilder("P(").append(names.get(queryVar)).append("=v").append(1 + random.nextInt(outcomes)).append('|');
+            boolean first = true;
+            for (Map.Entry<String, String> entry : evidence.entrySet()){
+                conditional.append(first ? "" : ",").append(entry.getKey()).append('=').append(entry.getValue());
+                first = false;
+            }
+            conditional.append(')');
+
+            fixture.simpleQueries.add(Engine.query(conditional + ",1"));
+            fixture.abcQueries.add(Engine.query(conditional + ",2"));
+            fixture.heuristicQueries.add(Engine.query(conditional + ",3"));
+            fixture.evidences.add(evidence);
+        }
+        return fixture;
+    }
+
+    void delete(){
+        xmlFile.delete();
+    }
+}
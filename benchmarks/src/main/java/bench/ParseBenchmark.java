@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark{
+
+    private int next = 0;
+
+    @Benchmark
+    public Object readXML(LargeNetwork net){
+        return Engine.readXML(net.fixture.xmlFile.getPath());
+    }
+
+    //one CPT factor per invocation, restricted by the evidence of one of the fixture's queries
+    @Benchmark
+    public Object createFromVariable(LargeNetwork net){
+        NetworkFixture f = net.fixture;
+        List<?> variables = Engine.variables(f.network);
+        next = (next + 1) % variables.size();
+        return Engine.createFactor(variables.get(next), f.evidences.get(next % f.evidences.size()), f.network);
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.*;
+
+//networks small enough for the exponential algorithms (full joint and simple inference)
+@State(Scope.Benchmark)
+public class SmallNetwork{
+
+    @Param({"8", "11"})
+    public int variables;
+
+    @Param({"2", "3"})
+    public int inDegree;
+
+    @Param({"2", "3"})
+    public int outcomes;
+
+    @Param({"42"})
+    public long seed;
+
+    NetworkFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        fixture = NetworkFixture.create(variables, inDegree, outcomes, seed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        fixture.delete();
+    }
+}
@@ -0,0 +1,56 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+//SIMD factor kernel on the JDK Vector API (incubator, java 16+), selected by FactorKernel when it is available
+//kept out of the main sources so they still build with javac *.java on java 8:
+//
+//  javac *.java
+//  javac --add-modules jdk.incubator.vector -d . vector/VectorFactorKernel.java
+//  java --add-modules jdk.incubator.vector Ex1
+//
+//lanes do the same multiplications and the same left to right additions as the scalar loops, the tail is scalar
+public class VectorFactorKernel implements FactorKernel{
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void multiply(double[] a, int ia, double[] b, int ib, double[] out, int io, int length){
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()){
+            DoubleVector.fromArray(SPECIES, a, ia + j).mul(DoubleVector.fromArray(SPECIES, b, ib + j)).intoArray(out, io + j);
+        }
+        for (; j < length; j++){
+            out[io + j] = a[ia + j] * b[ib + j];
+        }
+    }
+
+    @Override
+    public void scale(double[] a, int ia, double s, double[] out, int io, int length){
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()){
+            DoubleVector.fromArray(SPECIES, a, ia + j).mul(s).intoArray(out, io + j);
+        }
+        for (; j < length; j++){
+            out[io + j] = a[ia + j] * s;
+        }
+    }
+
+    @Override
+    public void sumStrided(double[] src, int is, int stride, int count, double[] out, int io, int length){
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()){
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (int k = 0; k < count; k++){
+                sum = sum.add(DoubleVector.fromArray(SPECIES, src, is + k * stride + j));
+            }
+            sum.intoArray(out, io + j);
+        }
+        for (; j < length; j++){
+            double sum = 0.0;
+            for (int k = 0; k < count; k++){
+                sum += src[is + k * stride + j];
+            }
+            out[io + j] = sum;
+        }
+    }
+}